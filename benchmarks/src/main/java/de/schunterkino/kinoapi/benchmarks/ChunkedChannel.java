@@ -0,0 +1,55 @@
+package de.schunterkino.kinoapi.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Channel which replays recorded device output in small pieces like a slow
+ * serial line or a busy network would deliver it. Starts over at the
+ * beginning when everything was read.
+ */
+public class ChunkedChannel implements ReadableByteChannel {
+
+	private byte[] data;
+	private int chunkSize;
+	private int position;
+
+	/**
+	 * @param data
+	 *            The recorded output of the device.
+	 * @param chunkSize
+	 *            Maximum number of bytes returned by a single read.
+	 */
+	public ChunkedChannel(byte[] data, int chunkSize) {
+		this.data = data;
+		this.chunkSize = chunkSize;
+		this.position = 0;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) {
+		if (position == data.length)
+			position = 0;
+
+		int length = Math.min(chunkSize, Math.min(dst.remaining(), data.length - position));
+		dst.put(data, position, length);
+		position += length;
+		return length;
+	}
+
+	/**
+	 * @return True if the last read returned the end of the recording.
+	 */
+	public boolean isAtEnd() {
+		return position == data.length;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,170 @@
+package de.schunterkino.kinoapi.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import javax.net.ssl.SSLSession;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.enums.ReadyState;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.protocols.IProtocol;
+
+/**
+ * Open websocket connection without a network behind it. Frames are encoded
+ * like a real connection would before writing them, so sending costs about as
+ * much as it does in the server, but the bytes are just counted.
+ */
+public class FakeWebSocket implements WebSocket {
+
+	private Draft draft;
+	private InetSocketAddress address;
+	private Object attachment;
+	private long bytesSent;
+
+	public FakeWebSocket(int port) {
+		this.draft = new Draft_6455();
+		this.address = new InetSocketAddress("127.0.0.1", port);
+		this.attachment = null;
+		this.bytesSent = 0;
+	}
+
+	/**
+	 * @return Number of encoded bytes which would have been written to the
+	 *         network.
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	@Override
+	public void send(String text) {
+		sendFrame(draft.createFrames(text, false));
+	}
+
+	@Override
+	public void send(ByteBuffer bytes) {
+		sendFrame(draft.createFrames(bytes, false));
+	}
+
+	@Override
+	public void send(byte[] bytes) {
+		send(ByteBuffer.wrap(bytes));
+	}
+
+	@Override
+	public void sendFrame(Framedata framedata) {
+		bytesSent += draft.createBinaryFrame(framedata).remaining();
+	}
+
+	@Override
+	public void sendFrame(Collection<Framedata> frames) {
+		for (Framedata framedata : frames)
+			sendFrame(framedata);
+	}
+
+	@Override
+	public void sendFragmentedFrame(Opcode op, ByteBuffer buffer, boolean fin) {
+		sendFrame(draft.continuousFrame(op, buffer, fin));
+	}
+
+	@Override
+	public void sendPing() {
+	}
+
+	@Override
+	public void close(int code, String message) {
+	}
+
+	@Override
+	public void close(int code) {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public void closeConnection(int code, String message) {
+	}
+
+	@Override
+	public boolean hasBufferedData() {
+		return false;
+	}
+
+	@Override
+	public InetSocketAddress getRemoteSocketAddress() {
+		return address;
+	}
+
+	@Override
+	public InetSocketAddress getLocalSocketAddress() {
+		return address;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public boolean isClosing() {
+		return false;
+	}
+
+	@Override
+	public boolean isFlushAndClose() {
+		return false;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return false;
+	}
+
+	@Override
+	public Draft getDraft() {
+		return draft;
+	}
+
+	@Override
+	public ReadyState getReadyState() {
+		return ReadyState.OPEN;
+	}
+
+	@Override
+	public String getResourceDescriptor() {
+		return "/";
+	}
+
+	@Override
+	public <T> void setAttachment(T attachment) {
+		this.attachment = attachment;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T getAttachment() {
+		return (T) attachment;
+	}
+
+	@Override
+	public boolean hasSSLSupport() {
+		return false;
+	}
+
+	@Override
+	public SSLSession getSSLSession() {
+		throw new IllegalArgumentException("This connection doesn't use SSL.");
+	}
+
+	@Override
+	public IProtocol getProtocol() {
+		return ((Draft_6455) draft).getProtocol();
+	}
+}
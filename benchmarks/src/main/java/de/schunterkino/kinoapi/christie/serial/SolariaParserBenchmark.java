@@ -0,0 +1,103 @@
+package de.schunterkino.kinoapi.christie.serial;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.schunterkino.kinoapi.benchmarks.ChunkedChannel;
+import de.schunterkino.kinoapi.sockets.CommandContainer;
+import de.schunterkino.kinoapi.sockets.ResponseFramer;
+
+/**
+ * Splits and parses the responses of the PIB the way the serial loop does. The
+ * benchmark lives in the package of the commands to reach the protected
+ * parser.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SolariaParserBenchmark {
+
+	// How many bytes arrive at once. The serial port usually hands out a few
+	// bytes per read.
+	@Param({ "4096", "8", "1" })
+	public int chunkSize;
+
+	private ExpectingSolariaCommands commands;
+	private ResponseFramer framer;
+	private ChunkedChannel channel;
+
+	// The command each response of the recording answers.
+	private List<CommandContainer<SolariaCommand>> expected;
+	private int next;
+
+	/**
+	 * The parser asks which command is waiting for the response. Answer with the
+	 * one matching the recording instead of sending the commands.
+	 */
+	static class ExpectingSolariaCommands extends SolariaSocketCommands {
+		CommandContainer<SolariaCommand> current;
+
+		@Override
+		protected CommandContainer<SolariaCommand> getCurrentCommand() {
+			return current;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() {
+		commands = new ExpectingSolariaCommands();
+		framer = new ResponseFramer(')', false);
+
+		// The answers to several status polls while the lamp warms up. The IMB
+		// isn't ready yet, so asking for the channel fails at first.
+		StringBuilder sb = new StringBuilder();
+		ArrayList<CommandContainer<SolariaCommand>> commandList = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			boolean warm = i >= 10;
+			sb.append(warm ? "(PWR+STAT!001 \"Lamp on\")" : "(PWR+STAT!011 \"In warm up\")");
+			commandList.add(new CommandContainer<>(SolariaCommand.GetPowerStatus));
+			sb.append("(SHU!1)");
+			commandList.add(new CommandContainer<>(SolariaCommand.GetDouserState));
+			sb.append(warm ? "(CHA!101)" : "(0 0 ERR2 \"IMB not available\")");
+			commandList.add(new CommandContainer<>(SolariaCommand.GetActiveChannel));
+			sb.append("(PWR+IGST!0)");
+			commandList.add(new CommandContainer<>(SolariaCommand.GetIngestState));
+		}
+		channel = new ChunkedChannel(sb.toString().getBytes(StandardCharsets.US_ASCII), chunkSize);
+		expected = commandList;
+		next = 0;
+	}
+
+	@Benchmark
+	public void parsePollCycles(Blackhole bh) throws IOException {
+		do {
+			framer.read(channel);
+			CharSequence frame;
+			while ((frame = framer.nextFrame()) != null) {
+				commands.current = expected.get(next);
+				next = (next + 1) % expected.size();
+				bh.consume(commands.onReceiveResponse(frame));
+			}
+		} while (!channel.isAtEnd());
+	}
+}
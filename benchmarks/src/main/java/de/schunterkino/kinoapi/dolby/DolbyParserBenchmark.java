@@ -0,0 +1,77 @@
+package de.schunterkino.kinoapi.dolby;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.schunterkino.kinoapi.benchmarks.ChunkedChannel;
+import de.schunterkino.kinoapi.sockets.ResponseFramer;
+
+/**
+ * Splits and parses the responses of the CP750 the way the reactor does. The
+ * benchmark lives in the package of the commands to reach the protected
+ * parser.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DolbyParserBenchmark {
+
+	// How many bytes arrive at once. A whole poll cycle in one packet, a few
+	// bytes of a response or every byte on its own.
+	@Param({ "4096", "8", "1" })
+	public int chunkSize;
+
+	private DolbySocketCommands commands;
+	private ResponseFramer framer;
+	private ChunkedChannel channel;
+
+	@Setup
+	public void setup() {
+		commands = new DolbySocketCommands();
+		framer = new ResponseFramer('\n', true);
+		channel = new ChunkedChannel(recordPollCycles(), chunkSize);
+	}
+
+	/**
+	 * The answers to several status polls while someone turns the volume up and
+	 * down again.
+	 */
+	private static byte[] recordPollCycles() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			int volume = 40 + (i < 10 ? i : 20 - i);
+			sb.append("cp750.sys.fader ").append(volume).append('\n');
+			sb.append("cp750.sys.mute 0\n");
+			sb.append("cp750.sys.input_mode dig_1\n");
+			sb.append("cp750.sys.pcm_2_channel_decode_mode_1 auto\n");
+		}
+		return sb.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Benchmark
+	public void parsePollCycles(Blackhole bh) throws IOException {
+		do {
+			framer.read(channel);
+			CharSequence frame;
+			while ((frame = framer.nextFrame()) != null)
+				bh.consume(commands.onReceiveResponse(frame));
+		} while (!channel.isAtEnd());
+	}
+}
@@ -0,0 +1,89 @@
+package de.schunterkino.kinoapi.sockets;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.schunterkino.kinoapi.christie.serial.SolariaCommand;
+import de.schunterkino.kinoapi.dolby.DolbyCommand;
+
+/**
+ * Encodes the commands of one poll cycle into the output buffer. Should not
+ * allocate at all.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CommandEncoderBenchmark {
+
+	private CommandEncoder<DolbyCommand> dolby;
+	private CommandEncoder<SolariaCommand> solaria;
+	private ByteBuffer output;
+	private int volume;
+
+	@Setup
+	public void setup() {
+		// Same templates as the device commands.
+		dolby = new CommandEncoder<>(DolbyCommand.class);
+		dolby.add(DolbyCommand.GetVolume, "cp750.sys.fader ?");
+		dolby.add(DolbyCommand.SetVolume, "cp750.sys.fader %d");
+		dolby.add(DolbyCommand.GetMuteStatus, "cp750.sys.mute ?");
+		dolby.add(DolbyCommand.GetInputMode, "cp750.sys.input_mode ?");
+		dolby.add(DolbyCommand.SetInputMode, "cp750.sys.input_mode %s", Arrays.asList("dig_1", "dig_2", "analog"));
+		dolby.add(DolbyCommand.GetDecodeMode, "cp750.sys.pcm_2_channel_decode_mode_1 ?");
+
+		solaria = new CommandEncoder<>(SolariaCommand.class);
+		solaria.add(SolariaCommand.GetPowerStatus, "(PWR+STAT?)");
+		solaria.add(SolariaCommand.GetDouserState, "(SHU?)");
+		solaria.add(SolariaCommand.GetActiveChannel, "(CHA?)");
+		solaria.add(SolariaCommand.SetActiveChannel, "(CHA %d)");
+		solaria.add(SolariaCommand.GetIngestState, "(PWR+IGST?)");
+
+		output = ByteBuffer.allocate(1024);
+		volume = 0;
+	}
+
+	@Benchmark
+	public ByteBuffer dolbyPollCycle() {
+		output.clear();
+		dolby.encode(DolbyCommand.GetVolume, 0, output);
+		dolby.encode(DolbyCommand.GetMuteStatus, 0, output);
+		dolby.encode(DolbyCommand.GetInputMode, 0, output);
+		dolby.encode(DolbyCommand.GetDecodeMode, 0, output);
+		return output;
+	}
+
+	@Benchmark
+	public ByteBuffer dolbySetters() {
+		output.clear();
+		volume = (volume + 1) % 70;
+		dolby.encode(DolbyCommand.SetVolume, volume, output);
+		dolby.encode(DolbyCommand.SetInputMode, 2, output);
+		return output;
+	}
+
+	@Benchmark
+	public ByteBuffer solariaPollCycle() {
+		output.clear();
+		solaria.encode(SolariaCommand.GetPowerStatus, 0, output);
+		solaria.encode(SolariaCommand.GetDouserState, 0, output);
+		solaria.encode(SolariaCommand.GetActiveChannel, 0, output);
+		solaria.encode(SolariaCommand.GetIngestState, 0, output);
+		solaria.encode(SolariaCommand.SetActiveChannel, 102, output);
+		return output;
+	}
+}
@@ -0,0 +1,202 @@
+package de.schunterkino.kinoapi.websocket;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+
+import de.schunterkino.kinoapi.christie.serial.ChannelType;
+import de.schunterkino.kinoapi.christie.serial.LampState;
+import de.schunterkino.kinoapi.christie.serial.PowerState;
+import de.schunterkino.kinoapi.christie.serial.SolariaSocketCommands;
+import de.schunterkino.kinoapi.dolby.DecodeMode;
+import de.schunterkino.kinoapi.dolby.DolbySocketCommands;
+import de.schunterkino.kinoapi.dolby.InputMode;
+import de.schunterkino.kinoapi.metrics.Histogram;
+import de.schunterkino.kinoapi.metrics.Metrics;
+import de.schunterkino.kinoapi.websocket.messages.BaseMessage;
+import de.schunterkino.kinoapi.websocket.messages.ErrorMessage;
+import de.schunterkino.kinoapi.websocket.messages.christie.ActiveChannelChangedMessage;
+import de.schunterkino.kinoapi.websocket.messages.christie.DouserChangedMessage;
+import de.schunterkino.kinoapi.websocket.messages.christie.IMBConnectionMessage;
+import de.schunterkino.kinoapi.websocket.messages.christie.IngestStateChangedMessage;
+import de.schunterkino.kinoapi.websocket.messages.christie.LampChangedMessage;
+import de.schunterkino.kinoapi.websocket.messages.christie.PIBConnectionMessage;
+import de.schunterkino.kinoapi.websocket.messages.christie.PowerChangedMessage;
+import de.schunterkino.kinoapi.websocket.messages.christie.SetChannelMessage;
+import de.schunterkino.kinoapi.websocket.messages.jnior.LightsConnectionMessage;
+import de.schunterkino.kinoapi.websocket.messages.jnior.SetLightLevelMessage;
+import de.schunterkino.kinoapi.websocket.messages.metrics.MetricsMessage;
+import de.schunterkino.kinoapi.websocket.messages.volume.DecodeModeChangedMessage;
+import de.schunterkino.kinoapi.websocket.messages.volume.DolbyConnectionMessage;
+import de.schunterkino.kinoapi.websocket.messages.volume.InputModeChangedMessage;
+import de.schunterkino.kinoapi.websocket.messages.volume.MuteStatusChangedMessage;
+import de.schunterkino.kinoapi.websocket.messages.volume.SetDecodeModeMessage;
+import de.schunterkino.kinoapi.websocket.messages.volume.SetMuteStatusMessage;
+import de.schunterkino.kinoapi.websocket.messages.volume.SetVolumeMessage;
+import de.schunterkino.kinoapi.websocket.messages.volume.VolumeChangedMessage;
+
+/**
+ * Converts every message of the websocket API from and to JSON with the same
+ * Gson setup the server uses. Messages sent to the clients are serialized,
+ * requests of the clients are parsed. The binary variants go through the
+ * {@link BinaryCodec} in addition.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MessageSerializationBenchmark {
+
+	@State(Scope.Thread)
+	public static class ServerMessage {
+		@Param({ "error", "metrics", "dolby_connection", "volume_changed", "mute_status_changed",
+				"input_mode_changed", "decode_mode_changed", "lights_connection", "imb_connection", "pib_connection",
+				"power_changed", "lamp_changed", "douser_changed", "channel_changed", "ingest_state_changed" })
+		public String message;
+
+		public Gson gson;
+		public Object instance;
+
+		@Setup
+		public void setup() {
+			gson = new Gson();
+			instance = createMessage(message);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ClientMessage {
+		@Param({ "base", "set_volume", "set_mute_status", "set_input_mode", "set_decode_mode", "set_light_level",
+				"set_channel", "playback_set_input_mode" })
+		public String message;
+
+		public Gson gson;
+		public String json;
+		public byte[] binary;
+		public Class<?> type;
+
+		@Setup
+		public void setup() {
+			gson = new Gson();
+			switch (message) {
+			case "base":
+				json = "{\"msg_type\":\"volume\",\"action\":\"increase_volume\"}";
+				type = BaseMessage.class;
+				break;
+			case "set_volume":
+				json = "{\"msg_type\":\"volume\",\"action\":\"set_volume\",\"volume\":42}";
+				type = SetVolumeMessage.class;
+				break;
+			case "set_mute_status":
+				json = "{\"msg_type\":\"volume\",\"action\":\"set_mute_status\",\"muted\":true}";
+				type = SetMuteStatusMessage.class;
+				break;
+			case "set_input_mode":
+				json = "{\"msg_type\":\"volume\",\"action\":\"set_input_mode\",\"mode\":4}";
+				type = de.schunterkino.kinoapi.websocket.messages.volume.SetInputModeMessage.class;
+				break;
+			case "set_decode_mode":
+				json = "{\"msg_type\":\"volume\",\"action\":\"set_decode_mode\",\"mode\":3}";
+				type = SetDecodeModeMessage.class;
+				break;
+			case "set_light_level":
+				json = "{\"msg_type\":\"lights\",\"action\":\"set_light_level\",\"level\":2}";
+				type = SetLightLevelMessage.class;
+				break;
+			case "set_channel":
+				json = "{\"msg_type\":\"projector\",\"action\":\"set_channel\",\"channel\":2}";
+				type = SetChannelMessage.class;
+				break;
+			case "playback_set_input_mode":
+				json = "{\"msg_type\":\"playback\",\"action\":\"set_input_mode\",\"mode\":\"cinema_scope\"}";
+				type = de.schunterkino.kinoapi.websocket.messages.christie.SetInputModeMessage.class;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown message " + message);
+			}
+			binary = BinaryCodec.encode(JsonParser.parseString(json));
+		}
+	}
+
+	@Benchmark
+	public String serialize(ServerMessage state) {
+		return state.gson.toJson(state.instance);
+	}
+
+	@Benchmark
+	public Object deserialize(ClientMessage state) {
+		return state.gson.fromJson(state.json, state.type);
+	}
+
+	@Benchmark
+	public byte[] serializeBinary(ServerMessage state) {
+		return BinaryCodec.encode(state.gson.toJsonTree(state.instance));
+	}
+
+	@Benchmark
+	public Object deserializeBinary(ClientMessage state) {
+		return state.gson.fromJson(BinaryCodec.decode(ByteBuffer.wrap(state.binary)), state.type);
+	}
+
+	private static Object createMessage(String message) {
+		Instant now = Instant.now();
+		switch (message) {
+		case "error":
+			return new ErrorMessage("Failed to change volume. No connection to Dolby audio processor.");
+		case "metrics":
+			// Fill the metrics like a running server would.
+			new DolbySocketCommands();
+			new SolariaSocketCommands();
+			for (Histogram histogram : Metrics.getHistograms().values()) {
+				for (int i = 0; i < 100; i++)
+					histogram.record(i * 37);
+			}
+			Metrics.increment("dolby.timeouts");
+			Metrics.setGauge("websocket.clients", 3);
+			return new MetricsMessage();
+		case "dolby_connection":
+			return new DolbyConnectionMessage(true);
+		case "volume_changed":
+			return new VolumeChangedMessage(42);
+		case "mute_status_changed":
+			return new MuteStatusChangedMessage(false);
+		case "input_mode_changed":
+			return new InputModeChangedMessage(InputMode.Digital_1);
+		case "decode_mode_changed":
+			return new DecodeModeChangedMessage(DecodeMode.Auto);
+		case "lights_connection":
+			return new LightsConnectionMessage(true);
+		case "imb_connection":
+			return new IMBConnectionMessage(true);
+		case "pib_connection":
+			return new PIBConnectionMessage(true);
+		case "power_changed":
+			return new PowerChangedMessage(PowerState.On, now);
+		case "lamp_changed":
+			return new LampChangedMessage(LampState.Cooling, now, 1800L);
+		case "douser_changed":
+			return new DouserChangedMessage(true);
+		case "channel_changed":
+			return new ActiveChannelChangedMessage(ChannelType.IMB_Flat);
+		case "ingest_state_changed":
+			return new IngestStateChangedMessage(false, now);
+		}
+		throw new IllegalArgumentException("Unknown message " + message);
+	}
+}
@@ -0,0 +1,212 @@
+package de.schunterkino.kinoapi.websocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.java_websocket.WebSocket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.schunterkino.kinoapi.benchmarks.FakeWebSocket;
+import de.schunterkino.kinoapi.christie.ChristieSocketCommands;
+import de.schunterkino.kinoapi.christie.serial.PowerState;
+import de.schunterkino.kinoapi.christie.serial.SolariaSocketCommands;
+import de.schunterkino.kinoapi.dolby.DolbySocketCommands;
+import de.schunterkino.kinoapi.jnior.JniorSocketCommands;
+import de.schunterkino.kinoapi.sockets.BaseCommands;
+import de.schunterkino.kinoapi.sockets.BaseSerialPortClient;
+import de.schunterkino.kinoapi.sockets.BaseSocketClient;
+import de.schunterkino.kinoapi.sockets.SocketReactor;
+
+/**
+ * Handles client requests and broadcasts device updates with the real server
+ * class. The websocket connections are faked, but frames are still encoded
+ * for every client. The device connections point to a local socket which
+ * never answers, so commands only end up in the queues.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class WebSocketServerBenchmark {
+
+	/**
+	 * Server with fake devices which are connected as far as the message
+	 * handlers can tell.
+	 */
+	public abstract static class ServerState {
+		protected BenchmarkServer server;
+		private ServerSocketChannel deviceServer;
+		private ArrayList<SocketChannel> deviceChannels;
+		private PrintStream out;
+		private PrintStream err;
+
+		protected void startServer() throws IOException {
+			// The server logs every request. Keep the output of the benchmark
+			// readable.
+			out = System.out;
+			err = System.err;
+			PrintStream nowhere = new PrintStream(OutputStream.nullOutputStream());
+			System.setOut(nowhere);
+			System.setErr(nowhere);
+
+			deviceServer = ServerSocketChannel.open();
+			deviceServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			deviceChannels = new ArrayList<>();
+
+			// The reactor isn't running, so nothing is ever sent.
+			SocketReactor reactor = new SocketReactor();
+			String ip = InetAddress.getLoopbackAddress().getHostAddress();
+			int port = ((InetSocketAddress) deviceServer.getLocalAddress()).getPort();
+			BaseSocketClient<DolbySocketCommands, ?, ?> dolby = new BaseSocketClient<>(reactor, ip, port,
+					DolbySocketCommands.class);
+			BaseSocketClient<JniorSocketCommands, ?, ?> jnior = new BaseSocketClient<>(reactor, ip, port,
+					JniorSocketCommands.class);
+			BaseSocketClient<ChristieSocketCommands, ?, ?> christie = new BaseSocketClient<>(reactor, ip, port,
+					ChristieSocketCommands.class);
+			connect(dolby.getCommands());
+			connect(jnior.getCommands());
+			connect(christie.getCommands());
+
+			server = new BenchmarkServer(dolby, jnior, christie,
+					new BaseSerialPortClient<>("/dev/null", SolariaSocketCommands.class));
+		}
+
+		private void connect(BaseCommands<?, ?> commands) throws IOException {
+			SocketChannel channel = SocketChannel.open(deviceServer.getLocalAddress());
+			deviceChannels.add(channel);
+			commands.setSocketChannel(channel);
+			// Nobody would pick up the wakeup.
+			commands.setWakeupHandler(() -> {
+			});
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			for (SocketChannel channel : deviceChannels)
+				channel.close();
+			deviceServer.close();
+			System.setOut(out);
+			System.setErr(err);
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static class BenchmarkServer extends CinemaWebSocketServer {
+		BenchmarkServer(BaseSocketClient dolby, BaseSocketClient jnior, BaseSocketClient christie,
+				BaseSerialPortClient solaria) {
+			super(0, dolby, jnior, christie, solaria);
+		}
+
+		FakeWebSocket addClient(int port) {
+			FakeWebSocket conn = new FakeWebSocket(port);
+			addConnection(conn);
+			acceptClient(conn, -1);
+			return conn;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Dispatch extends ServerState {
+		@Param({ "set_volume", "increase_volume", "set_light_level", "play", "metrics", "get_state", "unhandled", "malformed" })
+		public String message;
+
+		public FakeWebSocket conn;
+		public String json;
+
+		@Setup
+		public void setup() throws IOException {
+			startServer();
+			conn = server.addClient(50000);
+			switch (message) {
+			case "set_volume":
+				json = "{\"msg_type\":\"volume\",\"action\":\"set_volume\",\"volume\":42}";
+				break;
+			case "increase_volume":
+				json = "{\"msg_type\":\"volume\",\"action\":\"increase_volume\"}";
+				break;
+			case "set_light_level":
+				json = "{\"msg_type\":\"lights\",\"action\":\"set_light_level\",\"level\":2}";
+				break;
+			case "play":
+				json = "{\"msg_type\":\"playback\",\"action\":\"play\"}";
+				break;
+			case "metrics":
+				json = "{\"msg_type\":\"metrics\",\"action\":\"get\"}";
+				break;
+			case "get_state":
+				json = "{\"msg_type\":\"state\",\"action\":\"get_state\"}";
+				break;
+			case "unhandled":
+				json = "{\"msg_type\":\"volume\",\"action\":\"dance\"}";
+				break;
+			case "malformed":
+				json = "{\"msg_type\":\"volume\",";
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown message " + message);
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Broadcast extends ServerState {
+		@Param({ "1", "10", "100" })
+		public int clients;
+
+		// Every other client only watches the projector.
+		@Param({ "false", "true" })
+		public boolean projectorOnly;
+
+		public int volume;
+
+		@Setup
+		public void setup() throws IOException {
+			startServer();
+			for (int i = 0; i < clients; i++) {
+				FakeWebSocket conn = server.addClient(50000 + i);
+				if (projectorOnly && i % 2 == 1)
+					server.onMessage(conn, "{\"msg_type\":\"subscription\",\"action\":\"subscribe\",\"topics\":[\"projector\"]}");
+			}
+			volume = 0;
+		}
+	}
+
+	@Benchmark
+	public void onMessage(Dispatch state) {
+		state.server.onMessage(state.conn, state.json);
+	}
+
+	/**
+	 * A fader sweep. Most of the changes are coalesced before they're broadcast.
+	 */
+	@Benchmark
+	public void broadcastVolume(Broadcast state) {
+		state.volume = (state.volume + 1) % 70;
+		state.server.onVolumeChanged(state.volume);
+	}
+
+	@Benchmark
+	public void broadcastPowerState(Broadcast state) {
+		state.server.onPowerStateChanged(PowerState.On, Instant.now());
+	}
+}
@@ -0,0 +1,66 @@
+package de.schunterkino.kinoapi.simulator;
+
+import java.util.HashMap;
+
+/**
+ * Dolby CP750 console server. Answers queries and changes of the
+ * cp750.sys.* values with the current value like the real device.
+ */
+public class CP750Simulator extends SimulatedDevice {
+
+	private static final String SYS_PREFIX = "cp750.sys.";
+
+	private HashMap<String, String> values;
+	private int fader;
+
+	public CP750Simulator(int port, LinkProfile link) {
+		super(port, '\n', link);
+		this.fader = 40;
+		this.values = new HashMap<>();
+		values.put("mute", "0");
+		values.put("input_mode", "dig_1");
+		values.put("pcm_2_channel_decode_mode_1", "auto");
+	}
+
+	@Override
+	protected String handle(String request) {
+		String[] parts = request.split(" ", 2);
+		if (parts.length != 2) {
+			System.err.printf("%s: Malformed request: %s%n", LOG_TAG, request);
+			return null;
+		}
+		String key = parts[0];
+		String value = parts[1];
+
+		try {
+			// Relative volume changes are answered with the new volume.
+			if (key.equals("cp750.ctrl.fader_delta")) {
+				fader = clampFader(fader + Integer.parseInt(value));
+				return SYS_PREFIX + "fader " + fader + "\n";
+			}
+
+			if (key.equals(SYS_PREFIX + "fader")) {
+				if (!value.equals("?"))
+					fader = clampFader(Integer.parseInt(value));
+				return key + " " + fader + "\n";
+			}
+		} catch (NumberFormatException e) {
+			System.err.printf("%s: Invalid number: %s%n", LOG_TAG, request);
+			return null;
+		}
+
+		String name = key.startsWith(SYS_PREFIX) ? key.substring(SYS_PREFIX.length()) : null;
+		if (name == null || !values.containsKey(name)) {
+			System.err.printf("%s: Unknown key: %s%n", LOG_TAG, key);
+			return null;
+		}
+
+		if (!value.equals("?"))
+			values.put(name, value);
+		return key + " " + values.get(name) + "\n";
+	}
+
+	private static int clampFader(int value) {
+		return Math.max(0, Math.min(70, value));
+	}
+}
@@ -0,0 +1,30 @@
+package de.schunterkino.kinoapi.simulator;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Christie IMB macro server. Logs the macros which were triggered.
+ */
+public class IMBSimulator extends SimulatedDevice {
+
+	private static final List<String> macros = Arrays.asList("Play", "Pause", "Stop", "CinemaFlat", "CinemaScope",
+			"ComputerFlat", "ComputerScope");
+
+	public IMBSimulator(int port, LinkProfile link) {
+		super(port, '\n', link);
+	}
+
+	@Override
+	protected String handle(String request) {
+		// Keepalive.
+		if (request.equals("StillHere?"))
+			return null;
+
+		if (macros.contains(request))
+			System.out.printf("%s: Running macro %s.%n", LOG_TAG, request);
+		else
+			System.err.printf("%s: Unknown macro: %s%n", LOG_TAG, request);
+		return null;
+	}
+}
@@ -0,0 +1,27 @@
+package de.schunterkino.kinoapi.simulator;
+
+/**
+ * Integ Jnior 310 console. Logs the pulsed relay outputs. The empty keepalive
+ * lines are ignored.
+ */
+public class JniorSimulator extends SimulatedDevice {
+
+	public JniorSimulator(int port, LinkProfile link) {
+		super(port, '\n', link);
+	}
+
+	@Override
+	protected String handle(String request) {
+		if (request.isEmpty())
+			return null;
+
+		// Pulse relay output X for Y milliseconds: cXp=Y
+		if (request.matches("c[1-8]p=[0-9]+")) {
+			System.out.printf("%s: Pulsing relay %c for %sms.%n", LOG_TAG, request.charAt(1), request.substring(4));
+			return null;
+		}
+
+		System.err.printf("%s: Unknown command: %s%n", LOG_TAG, request);
+		return null;
+	}
+}
@@ -0,0 +1,43 @@
+package de.schunterkino.kinoapi.simulator;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Describes how a simulated device behaves on the wire.
+ */
+public class LinkProfile {
+
+	// Time in milliseconds the device takes to answer.
+	public int latency = 0;
+
+	// Random extra time in milliseconds added to the latency.
+	public int jitter = 0;
+
+	// Send responses in chunks of that many bytes. 0 to send them in one piece.
+	public int fragmentSize = 0;
+
+	// Pause in milliseconds between two chunks of a response.
+	public int fragmentDelay = 0;
+
+	// Chance between 0 and 1 that a response is never sent.
+	public double dropRate = 0;
+
+	/**
+	 * @return Time in milliseconds to wait before sending the next response.
+	 */
+	public long nextDelay() {
+		if (jitter <= 0)
+			return latency;
+		return latency + ThreadLocalRandom.current().nextInt(jitter + 1);
+	}
+
+	public boolean shouldDrop() {
+		return dropRate > 0 && ThreadLocalRandom.current().nextDouble() < dropRate;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("latency %dms, jitter %dms, fragments of %d bytes every %dms, drop rate %.2f", latency,
+				jitter, fragmentSize, fragmentDelay, dropRate);
+	}
+}
@@ -0,0 +1,129 @@
+package de.schunterkino.kinoapi.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import de.schunterkino.kinoapi.executor.TaskExecutor;
+
+/**
+ * TCP server which pretends to be a piece of cinema hardware. Requests are
+ * split at the terminator of the protocol and answered one after another with
+ * the delays and fragmentation of the link profile. All clients share the same
+ * device state.
+ */
+public abstract class SimulatedDevice {
+
+	protected String LOG_TAG = this.getClass().getSimpleName();
+
+	private int port;
+	private char terminator;
+	protected LinkProfile link;
+	private ServerSocket server;
+	private volatile boolean stop;
+
+	/**
+	 * @param port
+	 *            TCP port to listen on.
+	 * @param terminator
+	 *            Character which ends a request.
+	 * @param link
+	 *            Timing of the responses.
+	 */
+	protected SimulatedDevice(int port, char terminator, LinkProfile link) {
+		this.port = port;
+		this.terminator = terminator;
+		this.link = link;
+		this.server = null;
+		this.stop = false;
+	}
+
+	public void start() throws IOException {
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(port));
+		System.out.printf("%s: Listening on port %d.%n", LOG_TAG, port);
+		TaskExecutor.execute(this::acceptClients);
+	}
+
+	public void stop() {
+		stop = true;
+		try {
+			if (server != null)
+				server.close();
+		} catch (IOException e) {
+			// Who cares.
+		}
+	}
+
+	/**
+	 * Handle a single request.
+	 * 
+	 * @param request
+	 *            The request without the surrounding whitespace.
+	 * @return The response to send or null to stay silent.
+	 */
+	protected abstract String handle(String request);
+
+	private void acceptClients() {
+		while (!stop) {
+			try {
+				Socket client = server.accept();
+				TaskExecutor.execute(() -> serve(client));
+			} catch (IOException e) {
+				if (!stop)
+					System.err.printf("%s: Failed to accept client: %s%n", LOG_TAG, e.getMessage());
+				return;
+			}
+		}
+	}
+
+	private void serve(Socket client) {
+		System.out.printf("%s: Client %s connected.%n", LOG_TAG, client.getRemoteSocketAddress());
+		try (client) {
+			client.setTcpNoDelay(true);
+			InputStream in = client.getInputStream();
+			OutputStream out = client.getOutputStream();
+			StringBuilder request = new StringBuilder();
+			int b;
+			while (!stop && (b = in.read()) != -1) {
+				request.append((char) b);
+				if (b != terminator)
+					continue;
+
+				String response;
+				synchronized (this) {
+					response = handle(request.toString().trim());
+				}
+				request.setLength(0);
+
+				if (response != null && !link.shouldDrop())
+					send(out, response);
+			}
+		} catch (IOException e) {
+			if (!stop)
+				System.err.printf("%s: Client error: %s%n", LOG_TAG, e.getMessage());
+		} catch (InterruptedException e) {
+			// Stopping.
+		}
+		System.out.printf("%s: Client %s disconnected.%n", LOG_TAG, client.getRemoteSocketAddress());
+	}
+
+	private void send(OutputStream out, String response) throws IOException, InterruptedException {
+		Thread.sleep(link.nextDelay());
+
+		byte[] data = response.getBytes(StandardCharsets.US_ASCII);
+		int chunkSize = link.fragmentSize > 0 ? link.fragmentSize : data.length;
+		for (int offset = 0; offset < data.length; offset += chunkSize) {
+			// Give the client a chance to see the partial response.
+			if (offset > 0 && link.fragmentDelay > 0)
+				Thread.sleep(link.fragmentDelay);
+			out.write(data, offset, Math.min(chunkSize, data.length - offset));
+			out.flush();
+		}
+	}
+}
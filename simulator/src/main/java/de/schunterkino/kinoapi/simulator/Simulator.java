@@ -0,0 +1,106 @@
+package de.schunterkino.kinoapi.simulator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+
+import de.schunterkino.kinoapi.App;
+import de.schunterkino.kinoapi.executor.TaskExecutor;
+
+/**
+ * Runs simulators of all the cinema hardware on the local machine, so the
+ * server can be run and measured without the real devices. The simulated
+ * devices listen on the ports from the configuration file. Point the IPs in
+ * the configuration to this machine to use them.
+ *
+ * Options:
+ * <ul>
+ * <li>--latency=MS - Time until a response is sent.</li>
+ * <li>--jitter=MS - Random extra time added to the latency.</li>
+ * <li>--fragment=BYTES - Send the responses in chunks of that size.</li>
+ * <li>--fragment-delay=MS - Pause between two chunks.</li>
+ * <li>--drop=RATE - Chance between 0 and 1 that a response is lost.</li>
+ * <li>--warmup=S - Seconds the projector lamp needs to warm up.</li>
+ * <li>--cooldown=S - Seconds the projector lamp needs to cool down.</li>
+ * <li>--pib-port=PORT - TCP port of the simulated PIB.</li>
+ * </ul>
+ */
+public class Simulator {
+
+	public static void main(String[] args) {
+		LinkProfile link = new LinkProfile();
+		int warmup = 10;
+		int cooldown = 30;
+		int pibPort = 5200;
+
+		try {
+			for (String arg : args) {
+				String[] option = arg.split("=", 2);
+				if (option.length != 2)
+					throw new IllegalArgumentException("Expected --option=value: " + arg);
+
+				switch (option[0]) {
+				case "--latency":
+					link.latency = Integer.parseInt(option[1]);
+					break;
+				case "--jitter":
+					link.jitter = Integer.parseInt(option[1]);
+					break;
+				case "--fragment":
+					link.fragmentSize = Integer.parseInt(option[1]);
+					break;
+				case "--fragment-delay":
+					link.fragmentDelay = Integer.parseInt(option[1]);
+					break;
+				case "--drop":
+					link.dropRate = Double.parseDouble(option[1]);
+					break;
+				case "--warmup":
+					warmup = Integer.parseInt(option[1]);
+					break;
+				case "--cooldown":
+					cooldown = Integer.parseInt(option[1]);
+					break;
+				case "--pib-port":
+					pibPort = Integer.parseInt(option[1]);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + option[0]);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println("Simulator: " + e.getMessage());
+			System.exit(1);
+		}
+
+		System.out.println("Simulator: Link profile: " + link);
+
+		List<SimulatedDevice> devices = Arrays.asList(
+				new CP750Simulator(App.getConfigurationInteger("dolby_port"), link),
+				new JniorSimulator(App.getConfigurationInteger("jnior_port"), link),
+				new IMBSimulator(App.getConfigurationInteger("christie_imb_port"), link),
+				new SolariaPIBSimulator(pibPort, link, warmup, cooldown));
+
+		try {
+			for (SimulatedDevice device : devices)
+				device.start();
+
+			// Keep running until the user wants to stop.
+			BufferedReader sysin = new BufferedReader(new InputStreamReader(System.in));
+			while (true) {
+				System.out.println("Type \"q\" or \"quit\" to stop the simulator.");
+				String input = sysin.readLine();
+				if (input == null || input.equals("q") || input.equals("quit") || input.equals("exit"))
+					break;
+			}
+		} catch (IOException e) {
+			System.err.println("Simulator: " + e.getMessage());
+		} finally {
+			for (SimulatedDevice device : devices)
+				device.stop();
+			TaskExecutor.shutdown(1000);
+		}
+	}
+}
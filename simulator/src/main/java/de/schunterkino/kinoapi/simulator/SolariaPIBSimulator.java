@@ -0,0 +1,164 @@
+package de.schunterkino.kinoapi.simulator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Christie Solaria PIB. Simulates the power states of the projector including
+ * the time the lamp needs to warm up and cool down.
+ *
+ * The PIB is connected through a serial port. Java can't create a pseudo
+ * terminal, so this simulator listens on a TCP port which can be bridged to a
+ * pseudo terminal with socat.
+ */
+public class SolariaPIBSimulator extends SimulatedDevice {
+
+	// Values of (PWR+STAT?) like in the PowerMode enum.
+	private static final int LAMP_OFF = 0;
+	private static final int LAMP_ON = 1;
+	private static final int POWER_OFF = 3;
+	private static final int IN_COOL_DOWN = 10;
+	private static final int IN_WARM_UP = 11;
+
+	private static final Pattern setPowerPattern = Pattern.compile("\\(PWR([0-9]+)\\)");
+	private static final Pattern setDouserPattern = Pattern.compile("\\(SHU ([01])\\)");
+	private static final Pattern setChannelPattern = Pattern.compile("\\(CHA ([0-9]+)\\)");
+
+	// Milliseconds the lamp needs to warm up.
+	private long warmupTime;
+
+	// Milliseconds the lamp needs to cool down.
+	private long cooldownTime;
+
+	private int powerMode;
+	// Power mode to switch to when the current transition is done.
+	private int nextPowerMode;
+	// When the current warm up or cool down is done in System.nanoTime().
+	private long transitionEnd;
+
+	private boolean douserOpen;
+	private int channel;
+	private boolean ingesting;
+
+	public SolariaPIBSimulator(int port, LinkProfile link, int warmupSeconds, int cooldownSeconds) {
+		super(port, ')', link);
+		this.warmupTime = TimeUnit.SECONDS.toMillis(warmupSeconds);
+		this.cooldownTime = TimeUnit.SECONDS.toMillis(cooldownSeconds);
+		this.powerMode = POWER_OFF;
+		this.nextPowerMode = POWER_OFF;
+		this.transitionEnd = 0;
+		this.douserOpen = false;
+		this.channel = 101;
+		this.ingesting = false;
+	}
+
+	@Override
+	protected String handle(String request) {
+		updateTransition();
+
+		switch (request) {
+		case "(PWR+STAT?)":
+			return String.format("(PWR+STAT!%03d \"%s\")", powerMode, getPowerModeName());
+		case "(PWR+COOL?)":
+			return String.format("(PWR+COOL!%d)", powerMode == IN_COOL_DOWN ? getRemainingSeconds() : 0);
+		case "(SHU?)":
+			return String.format("(SHU!%d)", douserOpen ? 0 : 1);
+		case "(CHA?)":
+			// The IMB has to be running to know the channel.
+			if (powerMode == POWER_OFF)
+				return error(2, "IMB not available");
+			return String.format("(CHA!%d)", channel);
+		case "(PWR+IGST?)":
+			return String.format("(PWR+IGST!%d)", ingesting ? 1 : 0);
+		}
+
+		Matcher matcher = setPowerPattern.matcher(request);
+		if (matcher.matches()) {
+			setPowerMode(Integer.parseInt(matcher.group(1)));
+			return String.format("(PWR!%03d)", powerMode);
+		}
+
+		matcher = setDouserPattern.matcher(request);
+		if (matcher.matches()) {
+			douserOpen = matcher.group(1).equals("0");
+			return String.format("(SHU!%d)", douserOpen ? 0 : 1);
+		}
+
+		matcher = setChannelPattern.matcher(request);
+		if (matcher.matches()) {
+			if (powerMode == POWER_OFF)
+				return error(2, "IMB not available");
+			channel = Integer.parseInt(matcher.group(1));
+			return String.format("(CHA!%d)", channel);
+		}
+
+		System.err.printf("%s: Unknown command: %s%n", LOG_TAG, request);
+		return error(1, "Unknown command");
+	}
+
+	private void setPowerMode(int mode) {
+		switch (mode) {
+		case LAMP_ON:
+			if (powerMode == LAMP_OFF || powerMode == POWER_OFF)
+				startTransition(IN_WARM_UP, LAMP_ON, warmupTime);
+			break;
+		case LAMP_OFF:
+			if (powerMode == LAMP_ON)
+				startTransition(IN_COOL_DOWN, LAMP_OFF, cooldownTime);
+			else if (powerMode == POWER_OFF)
+				startTransition(IN_WARM_UP, LAMP_OFF, warmupTime);
+			break;
+		case POWER_OFF:
+			if (powerMode == LAMP_ON)
+				startTransition(IN_COOL_DOWN, POWER_OFF, cooldownTime);
+			else if (powerMode == LAMP_OFF)
+				powerMode = nextPowerMode = POWER_OFF;
+			break;
+		default:
+			System.err.printf("%s: Unsupported power mode %d%n", LOG_TAG, mode);
+			return;
+		}
+		System.out.printf("%s: Power mode %s.%n", LOG_TAG, getPowerModeName());
+	}
+
+	private void startTransition(int transitionMode, int targetMode, long duration) {
+		powerMode = transitionMode;
+		nextPowerMode = targetMode;
+		transitionEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration);
+	}
+
+	private void updateTransition() {
+		if (powerMode == nextPowerMode || System.nanoTime() < transitionEnd)
+			return;
+
+		powerMode = nextPowerMode;
+		System.out.printf("%s: Power mode %s.%n", LOG_TAG, getPowerModeName());
+	}
+
+	private long getRemainingSeconds() {
+		return Math.max(0, TimeUnit.NANOSECONDS.toSeconds(transitionEnd - System.nanoTime()));
+	}
+
+	private String getPowerModeName() {
+		switch (powerMode) {
+		case LAMP_OFF:
+			return "Lamp off";
+		case LAMP_ON:
+			return "Lamp on";
+		case POWER_OFF:
+			return "Power off";
+		case IN_COOL_DOWN:
+			return "In cool down";
+		case IN_WARM_UP:
+			return "In warm up";
+		default:
+			return "Unknown";
+		}
+	}
+
+	// The message must not contain a parenthesis, since that ends the response.
+	private static String error(int code, String message) {
+		return String.format("(0 0 ERR%d \"%s\")", code, message);
+	}
+}
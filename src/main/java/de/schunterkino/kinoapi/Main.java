@@ -1,6 +1,8 @@
 package de.schunterkino.kinoapi;
 
-import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import de.schunterkino.kinoapi.audio.AudioPlayer;
 import de.schunterkino.kinoapi.christie.ChristieCommand;
@@ -12,54 +14,62 @@ import de.schunterkino.kinoapi.christie.serial.SolariaSocketCommands;
 import de.schunterkino.kinoapi.dolby.DolbyCommand;
 import de.schunterkino.kinoapi.dolby.DolbySocketCommands;
 import de.schunterkino.kinoapi.dolby.IDolbyStatusUpdateReceiver;
+import de.schunterkino.kinoapi.executor.TaskExecutor;
 import de.schunterkino.kinoapi.jnior.IJniorStatusUpdateReceiver;
 import de.schunterkino.kinoapi.jnior.JniorCommand;
 import de.schunterkino.kinoapi.jnior.JniorSocketCommands;
 import de.schunterkino.kinoapi.sockets.BaseSerialPortClient;
 import de.schunterkino.kinoapi.sockets.BaseSocketClient;
+import de.schunterkino.kinoapi.sockets.SocketReactor;
 import de.schunterkino.kinoapi.websocket.CinemaWebSocketServer;
 
 public class Main {
 
+	// Wait X milliseconds for background tasks to finish when stopping.
+	private static final int SHUTDOWN_TIMEOUT = 5000;
+
+	// Wait X milliseconds before restarting the reactor after it crashed.
+	private static final int REACTOR_RESTART_DELAY = 1000;
+
+	private SocketReactor reactor;
+	private Future<?> reactorTask;
+
 	private BaseSocketClient<DolbySocketCommands, IDolbyStatusUpdateReceiver, DolbyCommand> dolbyConnection;
-	private Thread dolbyThread;
 
 	private BaseSocketClient<JniorSocketCommands, IJniorStatusUpdateReceiver, JniorCommand> jniorConnection;
-	private Thread jniorThread;
 
 	private BaseSocketClient<ChristieSocketCommands, IChristieStatusUpdateReceiver, ChristieCommand> christieConnection;
-	private Thread christieThread;
 
 	private BaseSerialPortClient<SolariaSocketCommands, ISolariaSerialStatusUpdateReceiver, SolariaCommand> solariaConnection;
-	private Thread solariaThread;
+	private Future<?> solariaTask;
 
 	private AudioPlayer audio;
 
 	private CinemaWebSocketServer websocketServer;
 
 	public void start() {
+		System.out.printf("Tasks: Running on %s threads.%n", TaskExecutor.isVirtual() ? "virtual" : "platform");
+
+		// All network connections to the hardware share one thread.
+		reactor = new SocketReactor();
+
 		// Setup the Dolby CP750 connection.
-		dolbyConnection = new BaseSocketClient<>(App.getConfigurationString("dolby_ip"),
+		dolbyConnection = new BaseSocketClient<>(reactor, App.getConfigurationString("dolby_ip"),
 				App.getConfigurationInteger("dolby_port"), DolbySocketCommands.class);
-		dolbyThread = new Thread(dolbyConnection);
-		dolbyThread.start();
 
 		// Setup the Integ Jnior 310 connection.
-		jniorConnection = new BaseSocketClient<>(App.getConfigurationString("jnior_ip"),
+		jniorConnection = new BaseSocketClient<>(reactor, App.getConfigurationString("jnior_ip"),
 				App.getConfigurationInteger("jnior_port"), JniorSocketCommands.class);
-		jniorThread = new Thread(jniorConnection);
-		jniorThread.start();
 
 		// Setup the Christie Projection connection.
-		christieConnection = new BaseSocketClient<>(App.getConfigurationString("christie_imb_ip"),
+		christieConnection = new BaseSocketClient<>(reactor, App.getConfigurationString("christie_imb_ip"),
 				App.getConfigurationInteger("christie_imb_port"), ChristieSocketCommands.class);
-		christieThread = new Thread(christieConnection);
-		christieThread.start();
+
+		reactorTask = TaskExecutor.submit(this::runReactor);
 
 		solariaConnection = new BaseSerialPortClient<>(App.getConfigurationString("pib_serial_port"),
 				SolariaSocketCommands.class);
-		solariaThread = new Thread(solariaConnection);
-		solariaThread.start();
+		solariaTask = TaskExecutor.submit(solariaConnection);
 
 		// Create an audio player to play some nice tunes when the lamp is
 		// cooled off.
@@ -91,58 +101,64 @@ public class Main {
 		}
 
 		// Wait for the hardware connections to terminate.
-		if (dolbyThread != null) {
-			try {
-				if (!dolbyConnection.isConnected())
-					dolbyThread.interrupt();
-				dolbyThread.join();
-			} catch (InterruptedException e) {
-				// We want to stop anyways. Errors are ok.
-			}
-			dolbyThread = null;
-			System.out.println("Dolby: Client stopped.");
+		if (reactorTask != null) {
+			reactor.stop();
+			waitFor(reactorTask);
+			reactorTask = null;
+			System.out.println("Reactor: Clients stopped.");
 		}
 
-		if (jniorThread != null) {
-			try {
-				if (!jniorConnection.isConnected())
-					jniorThread.interrupt();
-				jniorThread.join();
-			} catch (InterruptedException e) {
-				// We want to stop anyways. Errors are ok.
-			}
-			jniorThread = null;
-			System.out.println("Jnior: Client stopped.");
+		if (solariaTask != null) {
+			// Wake it up if it's waiting to reconnect.
+			if (!solariaConnection.isConnected())
+				solariaTask.cancel(true);
+			else
+				waitFor(solariaTask);
+			solariaTask = null;
+			System.out.println("Solaria: Client stopped.");
 		}
 
-		if (christieThread != null) {
+		// Kill any running audio playback.
+		if (audio != null) {
+			audio.stopSound();
+			audio = null;
+		}
+
+		// Wait for everything else that's still running, like listener
+		// notifications.
+		if (!TaskExecutor.shutdown(SHUTDOWN_TIMEOUT))
+			System.err.println("Tasks: Background tasks didn't stop in time.");
+	}
+
+	/**
+	 * Drive the hardware connections until the reactor is stopped. Nobody looks
+	 * at the result of the task before shutdown, so log a crash right away and
+	 * keep the devices reachable by restarting the loop. The reactor only
+	 * returns normally after {@link SocketReactor#stop()}.
+	 */
+	private void runReactor() {
+		while (true) {
 			try {
-				if (!christieConnection.isConnected())
-					christieThread.interrupt();
-				christieThread.join();
-			} catch (InterruptedException e) {
-				// We want to stop anyways. Errors are ok.
+				reactor.run();
+				return;
+			} catch (RuntimeException e) {
+				System.err.println("Reactor: Crashed. Restarting.");
+				e.printStackTrace();
 			}
-			christieThread = null;
-			System.out.println("Christie: Client stopped.");
-		}
 
-		if (solariaThread != null) {
 			try {
-				if (!solariaConnection.isConnected())
-					solariaThread.interrupt();
-				solariaThread.join();
+				Thread.sleep(REACTOR_RESTART_DELAY);
 			} catch (InterruptedException e) {
-				// We want to stop anyways. Errors are ok.
+				return;
 			}
-			solariaThread = null;
-			System.out.println("Solaria: Client stopped.");
 		}
+	}
 
-		// Kill any running audio thread.
-		if (audio != null) {
-			audio.stopSound();
-			audio = null;
+	private static void waitFor(Future<?> task) {
+		try {
+			task.get();
+		} catch (InterruptedException | ExecutionException | CancellationException e) {
+			// We want to stop anyways. Errors are ok.
 		}
 	}
 }
@@ -5,6 +5,8 @@ import java.io.FileFilter;
 import java.io.IOException;
 import java.security.SecureRandom;
 import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
@@ -28,6 +30,7 @@ import de.schunterkino.kinoapi.dolby.DolbyCommand;
 import de.schunterkino.kinoapi.dolby.DolbySocketCommands;
 import de.schunterkino.kinoapi.dolby.IDolbyStatusUpdateReceiver;
 import de.schunterkino.kinoapi.dolby.InputMode;
+import de.schunterkino.kinoapi.executor.TaskExecutor;
 import de.schunterkino.kinoapi.sockets.BaseSerialPortClient;
 import de.schunterkino.kinoapi.sockets.BaseSocketClient;
 
@@ -45,7 +48,7 @@ public class AudioPlayer implements LineListener, IDolbyStatusUpdateReceiver,
 
 	private boolean switchingInputMode;
 	private InputMode oldInputMode;
-	private Thread playThread = null;
+	private Future<?> playTask = null;
 	private SecureRandom rnd;
 
 	public AudioPlayer(BaseSocketClient<DolbySocketCommands, IDolbyStatusUpdateReceiver, DolbyCommand> dolby,
@@ -60,7 +63,12 @@ public class AudioPlayer implements LineListener, IDolbyStatusUpdateReceiver,
 	/**
 	 * this flag indicates whether the playback completes or not.
 	 */
-	boolean playCompleted;
+	volatile boolean playCompleted;
+
+	/**
+	 * Released when the audio line stopped playing.
+	 */
+	private volatile CountDownLatch playStopped;
 
 	/**
 	 * Play a given audio file.
@@ -70,13 +78,15 @@ public class AudioPlayer implements LineListener, IDolbyStatusUpdateReceiver,
 	 */
 	void play(String audioFilePath) {
 		File audioFile = new File(audioFilePath);
+		CountDownLatch stopped = new CountDownLatch(1);
+		playStopped = stopped;
+		playCompleted = false;
 
-		// Try to play the audio in a seperate non-blocking thread.
-		playThread = new Thread(new Runnable() {
+		// Try to play the audio in a seperate non-blocking task.
+		playTask = TaskExecutor.submit(new Runnable() {
 			@Override
 			public void run() {
 				Clip audioClip = null;
-				playCompleted = false;
 
 				try (AudioInputStream audioStream = AudioSystem.getAudioInputStream(audioFile)) {
 
@@ -92,10 +102,8 @@ public class AudioPlayer implements LineListener, IDolbyStatusUpdateReceiver,
 
 					audioClip.start();
 
-					while (!playCompleted) {
-						// wait for the playback completes
-						Thread.sleep(500);
-					}
+					// wait for the playback completes
+					stopped.await();
 
 				} catch (UnsupportedAudioFileException ex) {
 					System.out.println("The specified audio file is not supported.");
@@ -107,19 +115,17 @@ public class AudioPlayer implements LineListener, IDolbyStatusUpdateReceiver,
 					System.out.println("Error playing the audio file.");
 					ex.printStackTrace();
 				} catch (InterruptedException ex) {
-					ex.printStackTrace();
+					// The server is shutting down.
 				} finally {
 					if (audioClip != null)
 						audioClip.close();
 				}
-				playThread = null;
 
 				// Make sure we're resetting the dolby state after us even on errors.
 				if (!playCompleted)
 					resetDolbyState();
 			}
 		});
-		playThread.start();
 	}
 
 	/**
@@ -134,6 +140,7 @@ public class AudioPlayer implements LineListener, IDolbyStatusUpdateReceiver,
 
 		} else if (type == LineEvent.Type.STOP) {
 			playCompleted = true;
+			playStopped.countDown();
 			System.out.println("Playback completed.");
 			resetDolbyState();
 		}
@@ -206,7 +213,7 @@ public class AudioPlayer implements LineListener, IDolbyStatusUpdateReceiver,
 			return;
 
 		// Can't process this too fast again.
-		if (switchingInputMode || playThread != null)
+		if (switchingInputMode || (playTask != null && !playTask.isDone()))
 			return;
 
 		// Save current input source of audio.
@@ -225,14 +232,10 @@ public class AudioPlayer implements LineListener, IDolbyStatusUpdateReceiver,
 	}
 
 	public void stopSound() {
-		if (playThread != null) {
-			playThread.interrupt();
-			try {
-				playThread.join();
-			} catch (InterruptedException e) {
-				// Just stahp.
-			}
-			playThread = null;
+		if (playTask != null) {
+			// The executor waits for the task to close the audio line.
+			playTask.cancel(true);
+			playTask = null;
 		}
 	}
 
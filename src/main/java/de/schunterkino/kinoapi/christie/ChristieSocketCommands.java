@@ -1,138 +1,92 @@
 package de.schunterkino.kinoapi.christie;
 
-import com.google.gson.JsonSyntaxException;
-
 import de.schunterkino.kinoapi.sockets.BaseCommands;
-import de.schunterkino.kinoapi.sockets.CommandContainer;
+import de.schunterkino.kinoapi.websocket.MessageRouter;
 import de.schunterkino.kinoapi.websocket.WebSocketCommandException;
-import de.schunterkino.kinoapi.websocket.messages.BaseMessage;
 import de.schunterkino.kinoapi.websocket.messages.christie.SetInputModeMessage;
 
 public class ChristieSocketCommands extends BaseCommands<IChristieStatusUpdateReceiver, ChristieCommand> {
 
-	protected int UPDATE_INTERVAL = 10000;
-
 	public ChristieSocketCommands() {
-		super();
+		super(ChristieCommand.class, "christie_imb");
 		ignoreResponses();
 
 		// Send some random string every now and then to keep the projector from
 		// closing our connection.
 		// And detect if the projector is turned off.
 		watchCommand(ChristieCommand.KeepAlive);
+
+		// Names of the macros on the IMB.
+		encoder.add(ChristieCommand.Play, "Play");
+		encoder.add(ChristieCommand.Pause, "Pause");
+		encoder.add(ChristieCommand.Stop, "Stop");
+		encoder.add(ChristieCommand.FormatCinemaFlat, "CinemaFlat");
+		encoder.add(ChristieCommand.FormatCinemaScope, "CinemaScope");
+		encoder.add(ChristieCommand.FormatPCFlat, "ComputerFlat");
+		encoder.add(ChristieCommand.FormatPCScope, "ComputerScope");
+		encoder.add(ChristieCommand.KeepAlive, "StillHere?");
 	}
 
 	@Override
 	protected void onSocketConnected() {
 		// Notify listeners.
-		synchronized (listeners) {
-			for (IChristieStatusUpdateReceiver listener : listeners) {
-				listener.onChristieConnected();
-			}
-		}
+		notifyListeners(listener -> listener.onChristieConnected());
 	}
 
 	@Override
 	protected void onSocketDisconnected() {
 		// Notify listeners.
-		synchronized (listeners) {
-			for (IChristieStatusUpdateReceiver listener : listeners) {
-				listener.onChristieDisconnected();
-			}
-		}
+		notifyListeners(listener -> listener.onChristieDisconnected());
 	}
 
 	@Override
-	protected boolean onReceiveCommandOutput(String input) {
+	protected boolean onReceiveCommandOutput(CharSequence input) {
 		return true; // Don't care for stuff sent to us.
 	}
 
 	@Override
-	protected String getCommandString(CommandContainer<ChristieCommand> cmd) {
-		String command = null;
-		switch (cmd.cmd) {
-		case Play:
-			command = "Play";
-			break;
-		case Pause:
-			command = "Pause";
-			break;
-		case Stop:
-			command = "Stop";
-			break;
-		case FormatCinemaFlat:
-			command = "CinemaFlat";
-			break;
-		case FormatCinemaScope:
-			command = "CinemaScope";
-			break;
-		case FormatPCFlat:
-			command = "ComputerFlat";
-			break;
-		case FormatPCScope:
-			command = "ComputerScope";
-			break;
-		case KeepAlive:
-			command = "StillHere?";
-			break;
-		}
-		return command;
-	}
-
-	@Override
-	public boolean onMessage(BaseMessage baseMsg, String message)
-			throws WebSocketCommandException, JsonSyntaxException {
-
+	public void registerRoutes(MessageRouter router) {
 		// Handle all IMB playback related commands.
-		if (!"playback".equals(baseMsg.getMessageType()))
-			return false;
-
-		switch (baseMsg.getAction()) {
-		case "play":
+		router.add("playback", "play", (conn, msg) -> {
 			if (socket.isConnected())
-				addCommand(ChristieCommand.Play);
+				addCommand(ChristieCommand.Play, 0, UseResponse.WaitForResponse, msg.getCallback());
 			else
 				throw new WebSocketCommandException("Failed to play content. No connection to Christie projector.");
-			return true;
-		case "pause":
+		});
+		router.add("playback", "pause", (conn, msg) -> {
 			if (socket.isConnected())
-				addCommand(ChristieCommand.Pause);
+				addCommand(ChristieCommand.Pause, 0, UseResponse.WaitForResponse, msg.getCallback());
 			else
 				throw new WebSocketCommandException("Failed to pause content. No connection to Christie projector.");
-			return true;
-		case "stop":
+		});
+		router.add("playback", "stop", (conn, msg) -> {
 			if (socket.isConnected())
-				addCommand(ChristieCommand.Stop);
+				addCommand(ChristieCommand.Stop, 0, UseResponse.WaitForResponse, msg.getCallback());
 			else
 				throw new WebSocketCommandException("Failed to stop content. No connection to Christie projector.");
-			return true;
-		case "set_input_mode":
+		});
+		router.add("playback", "set_input_mode", SetInputModeMessage.class, (conn, msg) -> {
 			if (socket.isConnected()) {
-				SetInputModeMessage setInputModeMsg = gson.fromJson(message, SetInputModeMessage.class);
-				switch (setInputModeMsg.getInputMode()) {
+				switch (msg.getInputMode()) {
 				case "cinema_flat":
-					addCommand(ChristieCommand.FormatCinemaFlat);
+					addCommand(ChristieCommand.FormatCinemaFlat, 0, UseResponse.WaitForResponse, msg.getCallback());
 					break;
 				case "cinema_scope":
-					addCommand(ChristieCommand.FormatCinemaScope);
+					addCommand(ChristieCommand.FormatCinemaScope, 0, UseResponse.WaitForResponse, msg.getCallback());
 					break;
 				case "pc_flat":
-					addCommand(ChristieCommand.FormatPCFlat);
+					addCommand(ChristieCommand.FormatPCFlat, 0, UseResponse.WaitForResponse, msg.getCallback());
 					break;
 				case "pc_scope":
-					addCommand(ChristieCommand.FormatPCScope);
+					addCommand(ChristieCommand.FormatPCScope, 0, UseResponse.WaitForResponse, msg.getCallback());
 					break;
 				default:
-					throw new WebSocketCommandException(
-							"Invalid projector input mode: " + setInputModeMsg.getInputMode());
+					throw new WebSocketCommandException("Invalid projector input mode: " + msg.getInputMode());
 				}
 			} else
 				throw new WebSocketCommandException(
 						"Failed to switch to cinema flat input. No connection to Christie projector.");
-			return true;
-		}
-
-		return false;
+		});
 	}
 
 }
@@ -7,25 +7,25 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.google.gson.JsonSyntaxException;
-
+import de.schunterkino.kinoapi.App;
 import de.schunterkino.kinoapi.sockets.BaseCommands;
-import de.schunterkino.kinoapi.sockets.CommandContainer;
+import de.schunterkino.kinoapi.websocket.MessageRouter;
 import de.schunterkino.kinoapi.websocket.WebSocketCommandException;
-import de.schunterkino.kinoapi.websocket.messages.BaseMessage;
 import de.schunterkino.kinoapi.websocket.messages.christie.SetChannelMessage;
 
 public class SolariaSocketCommands extends BaseCommands<ISolariaSerialStatusUpdateReceiver, SolariaCommand> {
 
-	protected int UPDATE_INTERVAL = 1000;
+	private Matcher errorMatcher;
 
-	private Pattern errorPattern;
+	// The matchers are reused for every response.
 
 	// Power mode
 	// This list must match the PowerMode enum.
 	private static final List<Integer> powerModeNames = Arrays.asList(0, 1, 2, 3, 10, 11, -1);
-	private Pattern powerModePattern;
+	private Matcher powerModeMatcher;
 	private PowerMode powerMode;
+	// Acknowledgement of a power mode change.
+	private Matcher setPowerMatcher;
 
 	// Abstraction for clients.
 	// Separate lamp and IMB power.
@@ -37,51 +37,55 @@ public class SolariaSocketCommands extends BaseCommands<ISolariaSerialStatusUpda
 	private Instant lampStateChangedTimestamp;
 
 	// Get how long the lamp still needs to be cooled.
-	private Pattern cooldownPattern;
+	private Matcher cooldownMatcher;
 	private Long cooldownTime;
 
 	// Cache if the douser is currently open.
-	private Pattern douserStatePattern;
+	private Matcher douserStateMatcher;
 	private boolean douserOpen;
 
 	// Which image source is active?
-	private Pattern activeChannelPattern;
+	private Matcher activeChannelMatcher;
 	private int activeChannelIndex;
 	private ChannelType activeChannel;
 	// This list must match the ChannelType enum.
 	private static final List<Integer> channelMapping = Arrays.asList(-1, 101, 102, 109, 110);
 
-	private Pattern ingestStatePattern;
+	private Matcher ingestStateMatcher;
 	private boolean isIngesting;
 	private Instant ingsetStateChangedTimestamp;
 
 	public SolariaSocketCommands() {
-		super();
+		super(SolariaCommand.class, "pib");
+
+		// Every response is wrapped in parentheses.
+		setResponseTerminator(')');
 
 		// General pattern for errors with well-formed commands.
-		errorPattern = Pattern.compile("\\([0-9]+ [0-9]+ ERR([0-9]+) \"([^\"]+)\"\\)");
+		errorMatcher = Pattern.compile("\\([0-9]+ [0-9]+ ERR([0-9]+) \"([^\"]+)\"\\)").matcher("");
 
-		powerModePattern = Pattern.compile("\\(PWR\\+STAT!([0-9]+) \"([^\"]*)\"\\)");
+		powerModeMatcher = Pattern.compile("\\(PWR\\+STAT!([0-9]+) \"([^\"]*)\"\\)").matcher("");
 		powerMode = PowerMode.Unknown;
+		setPowerMatcher = Pattern.compile("\\(PWR!([0-9]+)\\)").matcher("");
 
 		powerState = PowerState.Off;
 		powerStateChangedTimestamp = null;
 		lampState = oldLampState = LampState.Off;
 		lampStateChangedTimestamp = null;
 
-		cooldownPattern = Pattern.compile("\\(PWR\\+COOL!([0-9]+)\\)");
+		cooldownMatcher = Pattern.compile("\\(PWR\\+COOL!([0-9]+)\\)").matcher("");
 		cooldownTime = null;
 
-		douserStatePattern = Pattern.compile("\\(SHU!([0-9]+)\\)");
+		douserStateMatcher = Pattern.compile("\\(SHU!([0-9]+)\\)").matcher("");
 		douserOpen = false;
 
 		// Channels are only valid from 101-164.
 		// Initialize with an invalid number to know that we don't know yet.
-		activeChannelPattern = Pattern.compile("\\(CHA!([0-9]+)\\)");
+		activeChannelMatcher = Pattern.compile("\\(CHA!([0-9]+)\\)").matcher("");
 		activeChannelIndex = -1;
 		activeChannel = ChannelType.Unknown;
 
-		ingestStatePattern = Pattern.compile("\\(PWR\\+IGST!([0-9]+)\\)");
+		ingestStateMatcher = Pattern.compile("\\(PWR\\+IGST!([0-9]+)\\)").matcher("");
 		isIngesting = false;
 		ingsetStateChangedTimestamp = null;
 
@@ -89,118 +93,99 @@ public class SolariaSocketCommands extends BaseCommands<ISolariaSerialStatusUpda
 		watchCommand(SolariaCommand.GetDouserState);
 		watchCommand(SolariaCommand.GetActiveChannel);
 		watchCommand(SolariaCommand.GetIngestState);
+
+		encoder.add(SolariaCommand.GetPowerStatus, "(PWR+STAT?)");
+		encoder.add(SolariaCommand.GetCooldownTimer, "(PWR+COOL?)");
+		encoder.add(SolariaCommand.SetPowerStatus, "(PWR%d)");
+		encoder.add(SolariaCommand.GetDouserState, "(SHU?)");
+		encoder.add(SolariaCommand.SetDouserState, "(SHU %d)");
+		encoder.add(SolariaCommand.GetActiveChannel, "(CHA?)");
+		encoder.add(SolariaCommand.SetActiveChannel, "(CHA %d)");
+		encoder.add(SolariaCommand.GetIngestState, "(PWR+IGST?)");
+
+		// Every response contains the tag of the value it reports, so all status
+		// polls can be written in one go and sorted out when the responses arrive.
+		enablePipelining(App.getConfigurationInteger("pib_command_window"));
 	}
 
 	@Override
 	protected void onSocketConnected() {
 		// Notify listeners.
-		synchronized (listeners) {
-			for (ISolariaSerialStatusUpdateReceiver listener : listeners) {
-				listener.onSolariaConnected();
-			}
-		}
+		notifyListeners(listener -> listener.onSolariaConnected());
 	}
 
 	@Override
 	protected void onSocketDisconnected() {
 		// Notify listeners.
-		synchronized (listeners) {
-			for (ISolariaSerialStatusUpdateReceiver listener : listeners) {
-				listener.onSolariaDisconnected();
-			}
-		}
+		notifyListeners(listener -> listener.onSolariaDisconnected());
 	}
 
 	@Override
-	protected boolean onReceiveCommandOutput(String input) {
-		boolean handled = false;
-		Matcher matcher;
+	protected boolean onReceiveCommandOutput(CharSequence input) {
+		// Wait until we get the desired response.
+		SolariaCommand expected = getResponseType(getCurrentCommand().cmd);
+		return onReceiveResponse(input) == expected || expected == null;
+	}
 
+	@Override
+	protected SolariaCommand onReceiveResponse(CharSequence response) {
 		// See if we got an error as response.
-		// Just handle and ignore the error message and move on to the next command in
-		// the queue.
-		matcher = errorPattern.matcher(input);
-		if (matcher.find()) {
+		// Errors don't tell which request they belong to. The PIB answers in order,
+		// so it's the oldest request still waiting for its response. That includes
+		// the commands changing a value, which stay in line until a later command
+		// was answered. Just handle and ignore the error message and move on to the
+		// next command.
+		if (errorMatcher.reset(response).find()) {
+			SolariaCommand cmd = getCurrentCommand().cmd;
 			// We expect to get errors when asking for the current channel while IMB is
 			// powered off.
-			if (getCurrentCommand().cmd != SolariaCommand.GetActiveChannel)
-				System.err.printf("Error response for command %s: %s%n", getCurrentCommand().cmd, matcher.group());
-			return true;
+			if (cmd != SolariaCommand.GetActiveChannel)
+				System.err.printf("Error response for command %s: %s%n", cmd, errorMatcher.group());
+			reportResponseError(errorMatcher.group(2));
+			return getResponseType(cmd);
 		}
 
-		switch (getCurrentCommand().cmd) {
-		case GetPowerStatus:
-			// Parse the response
-			matcher = powerModePattern.matcher(input);
-			// Wait until we get the desired response.
-			while (matcher.find()) {
-				String powerModeMatch = matcher.group(1);
-				if (powerModeMatch != null) {
-					int powerMode = Integer.parseInt(powerModeMatch);
-					int ordPowerMode = powerModeNames.indexOf(powerMode);
-					if (ordPowerMode != -1) {
-						updatePowerMode(PowerMode.values()[ordPowerMode]);
-					} else {
-						System.err.printf("%s: Received invalid power mode: %s \"%s\"%n", LOG_TAG, powerModeMatch,
-								matcher.group(2));
-					}
-					handled = true;
-				}
-			}
-			break;
-		case GetCooldownTimer:
-			// Parse the response
-			matcher = cooldownPattern.matcher(input);
-			// Wait until we get the desired response.
-			while (matcher.find()) {
-				String cooldown = matcher.group(1);
-				if (cooldown != null) {
-					updateCooldownTimer(Long.parseLong(cooldown));
-					handled = true;
-				}
-			}
-			break;
-		case GetDouserState:
-			// Parse the response
-			matcher = douserStatePattern.matcher(input);
-			// Wait until we get the desired response.
-			while (matcher.find()) {
-				String state = matcher.group(1);
-				if (state != null) {
-					updateDouserState(Integer.parseInt(state) == 0);
-					handled = true;
-				}
-			}
-			break;
-		case GetActiveChannel:
-			// Parse the response
-			matcher = activeChannelPattern.matcher(input);
-			// Wait until we get the desired response.
-			while (matcher.find()) {
-				String channel = matcher.group(1);
-				if (channel != null) {
-					updateActiveChannel(Integer.parseInt(channel));
-					handled = true;
-				}
+		// Every other response tells which value it's about.
+		if (powerModeMatcher.reset(response).find()) {
+			int powerMode = Integer.parseInt(response, powerModeMatcher.start(1), powerModeMatcher.end(1), 10);
+			int ordPowerMode = powerModeNames.indexOf(powerMode);
+			if (ordPowerMode != -1) {
+				updatePowerMode(PowerMode.values()[ordPowerMode]);
+			} else {
+				System.err.printf("%s: Received invalid power mode: %s \"%s\"%n", LOG_TAG, powerModeMatcher.group(1),
+						powerModeMatcher.group(2));
 			}
-			break;
-		case GetIngestState:
-			// Parse the response
-			matcher = ingestStatePattern.matcher(input);
-			// Wait until we get the desired response.
-			while (matcher.find()) {
-				String ingesting = matcher.group(1);
-				if (ingesting != null) {
-					updateIngestState(Integer.parseInt(ingesting) == 1);
-					handled = true;
-				}
-			}
-			break;
-		default:
-			handled = true;
-			break;
+			return SolariaCommand.GetPowerStatus;
+		}
+
+		if (setPowerMatcher.reset(response).find())
+			return SolariaCommand.SetPowerStatus;
+
+		if (cooldownMatcher.reset(response).find()) {
+			updateCooldownTimer(Long.parseLong(response, cooldownMatcher.start(1), cooldownMatcher.end(1), 10));
+			return SolariaCommand.GetCooldownTimer;
 		}
-		return handled;
+
+		if (douserStateMatcher.reset(response).find()) {
+			updateDouserState(
+					Integer.parseInt(response, douserStateMatcher.start(1), douserStateMatcher.end(1), 10) == 0);
+			return SolariaCommand.GetDouserState;
+		}
+
+		if (activeChannelMatcher.reset(response).find()) {
+			updateActiveChannel(
+					Integer.parseInt(response, activeChannelMatcher.start(1), activeChannelMatcher.end(1), 10));
+			return SolariaCommand.GetActiveChannel;
+		}
+
+		if (ingestStateMatcher.reset(response).find()) {
+			updateIngestState(
+					Integer.parseInt(response, ingestStateMatcher.start(1), ingestStateMatcher.end(1), 10) == 1);
+			return SolariaCommand.GetIngestState;
+		}
+
+		// Like the acknowledgement of a command we didn't wait for.
+		return null;
 	}
 
 	public PowerState getPowerState() {
@@ -254,11 +239,7 @@ public class SolariaSocketCommands extends BaseCommands<ISolariaSerialStatusUpda
 		cooldownTime = cooldown;
 
 		// Notify listeners.
-		synchronized (listeners) {
-			for (ISolariaSerialStatusUpdateReceiver listener : listeners) {
-				listener.onLampStateChanged(lampState, oldLampState, lampStateChangedTimestamp, cooldownTime);
-			}
-		}
+		notifyLampStateChanged();
 	}
 
 	private void updatePowerMode(PowerMode mode) {
@@ -304,11 +285,9 @@ public class SolariaSocketCommands extends BaseCommands<ISolariaSerialStatusUpda
 		powerStateChangedTimestamp = Instant.now();
 
 		// Notify listeners.
-		synchronized (listeners) {
-			for (ISolariaSerialStatusUpdateReceiver listener : listeners) {
-				listener.onPowerStateChanged(powerState, powerStateChangedTimestamp);
-			}
-		}
+		PowerState state = powerState;
+		Instant timestamp = powerStateChangedTimestamp;
+		notifyListeners(listener -> listener.onPowerStateChanged(state, timestamp));
 	}
 
 	private void handleLampStateChange() {
@@ -356,11 +335,7 @@ public class SolariaSocketCommands extends BaseCommands<ISolariaSerialStatusUpda
 		cooldownTime = null;
 
 		// Notify listeners.
-		synchronized (listeners) {
-			for (ISolariaSerialStatusUpdateReceiver listener : listeners) {
-				listener.onLampStateChanged(lampState, oldLampState, lampStateChangedTimestamp, cooldownTime);
-			}
-		}
+		notifyLampStateChanged();
 	}
 
 	private void updateDouserState(boolean isopen) {
@@ -371,11 +346,7 @@ public class SolariaSocketCommands extends BaseCommands<ISolariaSerialStatusUpda
 		douserOpen = isopen;
 
 		// Notify listeners.
-		synchronized (listeners) {
-			for (ISolariaSerialStatusUpdateReceiver listener : listeners) {
-				listener.onDouserStateChanged(douserOpen);
-			}
-		}
+		notifyListeners(listener -> listener.onDouserStateChanged(isopen));
 	}
 
 	private void updateActiveChannel(int channel) {
@@ -403,11 +374,8 @@ public class SolariaSocketCommands extends BaseCommands<ISolariaSerialStatusUpda
 		// (NAM+CALL?)
 
 		// Notify listeners.
-		synchronized (listeners) {
-			for (ISolariaSerialStatusUpdateReceiver listener : listeners) {
-				listener.onActiveChannelChanged(activeChannel);
-			}
-		}
+		ChannelType channelType = activeChannel;
+		notifyListeners(listener -> listener.onActiveChannelChanged(channelType));
 	}
 
 	private void updateIngestState(boolean ingesting) {
@@ -418,121 +386,102 @@ public class SolariaSocketCommands extends BaseCommands<ISolariaSerialStatusUpda
 		ingsetStateChangedTimestamp = Instant.now();
 
 		// Notify listeners.
-		synchronized (listeners) {
-			for (ISolariaSerialStatusUpdateReceiver listener : listeners) {
-				listener.onIngestStatusChanged(isIngesting, ingsetStateChangedTimestamp);
-			}
-		}
+		Instant timestamp = ingsetStateChangedTimestamp;
+		notifyListeners(listener -> listener.onIngestStatusChanged(ingesting, timestamp));
+	}
+
+	private void notifyLampStateChanged() {
+		// The listeners are called later. Pass the current state.
+		LampState state = lampState;
+		LampState oldState = oldLampState;
+		Instant timestamp = lampStateChangedTimestamp;
+		Long cooldown = cooldownTime;
+		notifyListeners(listener -> listener.onLampStateChanged(state, oldState, timestamp, cooldown));
 	}
 
 	@Override
-	protected String getCommandString(CommandContainer<SolariaCommand> cmd) {
-		String command = null;
-		switch (cmd.cmd) {
-		case GetPowerStatus:
-			command = "(PWR+STAT?)";
-			break;
-		case GetCooldownTimer:
-			command = "(PWR+COOL?)";
-			break;
+	protected int getMaxRetries(SolariaCommand cmd) {
+		switch (cmd) {
+		// Setting the state again doesn't hurt.
 		case SetPowerStatus:
-			command = "(PWR" + cmd.value + ")";
-			break;
-		case GetDouserState:
-			command = "(SHU?)";
-			break;
 		case SetDouserState:
-			command = "(SHU " + cmd.value + ")";
-			break;
-		case GetActiveChannel:
-			command = "(CHA?)";
-			break;
 		case SetActiveChannel:
-			command = "(CHA " + cmd.value + ")";
-			break;
-		case GetIngestState:
-			command = "(PWR+IGST?)";
-			break;
+			return 2;
+		default:
+			return 0;
 		}
-		return command;
 	}
 
 	@Override
-	public boolean onMessage(BaseMessage baseMsg, String message)
-			throws WebSocketCommandException, JsonSyntaxException {
-
-		// Handle all PIB related commands.
-		if (!"projector".equals(baseMsg.getMessageType()))
-			return false;
-
-		switch (baseMsg.getAction()) {
-		case "douser_open":
-			if (socket.isConnected())
-				addCommand(SolariaCommand.SetDouserState, 0, UseResponse.IgnoreResponse);
-			else
+	public void registerRoutes(MessageRouter router) {
+		// Handle all PIB related commands. The client is told whether the set
+		// command failed. The PIB answers most of them only with an error, so
+		// they're confirmed by the answer to reading the state back afterwards.
+		router.add("projector", "douser_open", (conn, msg) -> {
+			if (socket.isConnected()) {
+				addCommand(SolariaCommand.SetDouserState, 0, UseResponse.IgnoreResponse, msg.getCallback());
+				addCommand(SolariaCommand.GetDouserState);
+			} else
 				throw new WebSocketCommandException(
 						"Failed to open the douser. No connection to Christie projector intelligence board.");
-			return true;
-		case "douser_close":
-			if (socket.isConnected())
-				addCommand(SolariaCommand.SetDouserState, 1, UseResponse.IgnoreResponse);
-			else
+		});
+		router.add("projector", "douser_close", (conn, msg) -> {
+			if (socket.isConnected()) {
+				addCommand(SolariaCommand.SetDouserState, 1, UseResponse.IgnoreResponse, msg.getCallback());
+				addCommand(SolariaCommand.GetDouserState);
+			} else
 				throw new WebSocketCommandException(
 						"Failed to close the douser. No connection to Christie projector intelligence board.");
-			return true;
-		case "lamp_on":
+		});
+		router.add("projector", "lamp_on", (conn, msg) -> {
 			if (socket.isConnected()) {
-				addCommand(SolariaCommand.SetPowerStatus, PowerMode.LampOn.ordinal(), UseResponse.IgnoreResponse);
+				addCommand(SolariaCommand.SetPowerStatus, PowerMode.LampOn.ordinal(), UseResponse.IgnoreResponse, msg.getCallback());
 				addCommand(SolariaCommand.GetPowerStatus);
 			} else
 				throw new WebSocketCommandException("Failed to turn lamp on. No connection to Christie projector.");
-			return true;
-		case "lamp_off":
+		});
+		router.add("projector", "lamp_off", (conn, msg) -> {
 			if (socket.isConnected()) {
-				addCommand(SolariaCommand.SetPowerStatus, PowerMode.LampOff.ordinal(), UseResponse.IgnoreResponse);
+				addCommand(SolariaCommand.SetPowerStatus, PowerMode.LampOff.ordinal(), UseResponse.IgnoreResponse, msg.getCallback());
 				addCommand(SolariaCommand.GetPowerStatus);
 			} else
 				throw new WebSocketCommandException("Failed to turn lamp off. No connection to Christie projector.");
-			return true;
-		case "power_off":
+		});
+		router.add("projector", "power_off", (conn, msg) -> {
 			if (socket.isConnected()) {
 				if (isIngesting())
 					throw new WebSocketCommandException("The IMB is currently ingesting content.");
 
-				addCommand(SolariaCommand.SetPowerStatus, PowerMode.PowerOff.ordinal(), UseResponse.IgnoreResponse);
+				addCommand(SolariaCommand.SetPowerStatus, PowerMode.PowerOff.ordinal(), UseResponse.IgnoreResponse, msg.getCallback());
 				addCommand(SolariaCommand.GetPowerStatus);
 			} else
 				throw new WebSocketCommandException(
 						"Failed to power off the IMB. No connection to Christie projector.");
-			return true;
-		case "power_on":
+		});
+		router.add("projector", "power_on", (conn, msg) -> {
 			if (socket.isConnected()) {
 				// Make sure we actually turn the IMB on and not the lamp off.
 				if (powerMode != PowerMode.PowerOff)
 					throw new WebSocketCommandException("The IMB is already on.");
 
-				addCommand(SolariaCommand.SetPowerStatus, PowerMode.LampOff.ordinal(), UseResponse.IgnoreResponse);
+				addCommand(SolariaCommand.SetPowerStatus, PowerMode.LampOff.ordinal(), UseResponse.IgnoreResponse, msg.getCallback());
 				addCommand(SolariaCommand.GetPowerStatus);
 			} else
 				throw new WebSocketCommandException("Failed to power on the IMB. No connection to Christie projector.");
-			return true;
-		case "set_channel":
+		});
+		router.add("projector", "set_channel", SetChannelMessage.class, (conn, msg) -> {
 			if (socket.isConnected()) {
-				SetChannelMessage setChannelMsg = gson.fromJson(message, SetChannelMessage.class);
-				if (setChannelMsg.getChannel() <= 0 || setChannelMsg.getChannel() >= channelMapping.size())
-					throw new WebSocketCommandException("Invalid projector channel: " + setChannelMsg.getChannel());
+				if (msg.getChannel() <= 0 || msg.getChannel() >= channelMapping.size())
+					throw new WebSocketCommandException("Invalid projector channel: " + msg.getChannel());
 
 				// Get the right actual channel number.
-				int channelIndex = channelMapping.get(setChannelMsg.getChannel());
+				int channelIndex = channelMapping.get(msg.getChannel());
 
-				addCommand(SolariaCommand.SetActiveChannel, channelIndex, UseResponse.IgnoreResponse);
+				addCommand(SolariaCommand.SetActiveChannel, channelIndex, UseResponse.IgnoreResponse, msg.getCallback());
 				addCommand(SolariaCommand.GetActiveChannel);
 			} else
 				throw new WebSocketCommandException(
 						"Failed to change active channel. No connection to Christie projector.");
-			return true;
-		}
-
-		return false;
+		});
 	}
 }
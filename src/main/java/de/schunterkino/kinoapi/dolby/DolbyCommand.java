@@ -1,5 +1,5 @@
 package de.schunterkino.kinoapi.dolby;
 
 public enum DolbyCommand {
-	GetVolume, SetVolume, IncreaseVolume, DecreaseVolume, GetMuteStatus, SetMuteStatus, GetInputMode, SetInputMode, GetDecodeMode, SetDecodeMode
+	GetVolume, SetVolume, ChangeVolume, GetMuteStatus, SetMuteStatus, GetInputMode, SetInputMode, GetDecodeMode, SetDecodeMode
 }
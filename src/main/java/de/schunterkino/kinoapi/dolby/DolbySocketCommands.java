@@ -5,12 +5,12 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.google.gson.JsonSyntaxException;
-
+import de.schunterkino.kinoapi.App;
 import de.schunterkino.kinoapi.sockets.BaseCommands;
 import de.schunterkino.kinoapi.sockets.CommandContainer;
+import de.schunterkino.kinoapi.sockets.ICommandCallback;
+import de.schunterkino.kinoapi.websocket.MessageRouter;
 import de.schunterkino.kinoapi.websocket.WebSocketCommandException;
-import de.schunterkino.kinoapi.websocket.messages.BaseMessage;
 import de.schunterkino.kinoapi.websocket.messages.volume.SetDecodeModeMessage;
 import de.schunterkino.kinoapi.websocket.messages.volume.SetInputModeMessage;
 import de.schunterkino.kinoapi.websocket.messages.volume.SetMuteStatusMessage;
@@ -18,207 +18,278 @@ import de.schunterkino.kinoapi.websocket.messages.volume.SetVolumeMessage;
 
 public class DolbySocketCommands extends BaseCommands<IDolbyStatusUpdateReceiver, DolbyCommand> {
 
+	// Every response echoes the key of the value it reports like
+	// "cp750.sys.fader 40". The matchers are reused for every response.
+
 	// Volume control
-	private Pattern faderPattern;
+	// The fader goes from 0 to 7.0 in steps of 0.1.
+	private static final int MIN_VOLUME = 0;
+	private static final int MAX_VOLUME = 70;
+	private Matcher faderMatcher;
 	private int volume;
+	// Sum of the fader steps which were sent, but aren't included in the volume
+	// the CP750 reported last.
+	private int unreportedDelta;
 
 	// Mute button
-	private Pattern mutePattern;
+	private Matcher muteMatcher;
 	private boolean muted;
 
 	// Input mode
 	// This list must match the InputMode enum.
 	private static final List<String> inputModeNames = Arrays.asList("dig_1", "dig_2", "dig_3", "dig_4", "analog",
 			"non_sync", "mic", "last");
-	private Pattern inputModePattern;
+	private Matcher inputModeMatcher;
 	private InputMode inputMode;
 
 	// Digital 1 decode mode (5.1 or 7.1 surround)
 	// This list must match the DecodeMode enum.
 	private static final List<String> decodeModeNames = Arrays.asList("invalid", "auto", "n_a", "lr_discrete",
 			"prologic", "prologic_2", "4_discrete_sur");
-	private Pattern decodeModePattern;
+	private Matcher decodeModeMatcher;
 	private DecodeMode decodeMode;
 
 	public DolbySocketCommands() {
-		super();
+		super(DolbyCommand.class, "dolby");
 
-		this.faderPattern = Pattern.compile("cp750\\.sys\\.fader (\\d+)\n");
+		this.faderMatcher = Pattern.compile("cp750\\.sys\\.fader (\\d+)\n").matcher("");
 		this.volume = -1;
+		this.unreportedDelta = 0;
 		watchCommand(DolbyCommand.GetVolume);
 
-		this.mutePattern = Pattern.compile("cp750\\.sys\\.mute (\\d+)\n");
+		this.muteMatcher = Pattern.compile("cp750\\.sys\\.mute (\\d+)\n").matcher("");
 		this.muted = false;
 		watchCommand(DolbyCommand.GetMuteStatus);
 
-		this.inputModePattern = Pattern.compile("cp750\\.sys\\.input_mode ([a-zA-Z0-9_]+)\n");
+		this.inputModeMatcher = Pattern.compile("cp750\\.sys\\.input_mode ([a-zA-Z0-9_]+)\n").matcher("");
 		this.inputMode = InputMode.Digital_1;
 		watchCommand(DolbyCommand.GetInputMode);
 
-		this.decodeModePattern = Pattern.compile("cp750\\.sys\\.pcm_2_channel_decode_mode_1 ([a-zA-Z0-9_]+)\n");
+		this.decodeModeMatcher = Pattern.compile("cp750\\.sys\\.pcm_2_channel_decode_mode_1 ([a-zA-Z0-9_]+)\n")
+				.matcher("");
 		this.decodeMode = DecodeMode.Auto;
 		watchCommand(DolbyCommand.GetDecodeMode);
+
+		encoder.add(DolbyCommand.GetVolume, "cp750.sys.fader ?");
+		encoder.add(DolbyCommand.SetVolume, "cp750.sys.fader %d");
+		encoder.add(DolbyCommand.ChangeVolume, "cp750.ctrl.fader_delta %d");
+		encoder.add(DolbyCommand.GetMuteStatus, "cp750.sys.mute ?");
+		encoder.add(DolbyCommand.SetMuteStatus, "cp750.sys.mute %d");
+		encoder.add(DolbyCommand.GetInputMode, "cp750.sys.input_mode ?");
+		encoder.add(DolbyCommand.SetInputMode, "cp750.sys.input_mode %s", inputModeNames);
+		encoder.add(DolbyCommand.GetDecodeMode, "cp750.sys.pcm_2_channel_decode_mode_1 ?");
+		encoder.add(DolbyCommand.SetDecodeMode, "cp750.sys.pcm_2_channel_decode_mode_1 %s", decodeModeNames);
+
+		// The CP750 answers in order and every response contains its key, so we
+		// don't have to wait for one response before sending the next command.
+		enablePipelining(App.getConfigurationInteger("dolby_command_window"));
 	}
 
 	@Override
 	protected void onSocketConnected() {
+		// Nothing was sent on this connection yet.
+		unreportedDelta = 0;
+
 		// Notify listeners.
-		synchronized (listeners) {
-			for (IDolbyStatusUpdateReceiver listener : listeners) {
-				listener.onDolbyConnected();
-			}
-		}
+		notifyListeners(listener -> listener.onDolbyConnected());
 	}
 	
 	@Override
 	protected void onSocketDisconnected() {
 		// Notify listeners.
-		synchronized (listeners) {
-			for (IDolbyStatusUpdateReceiver listener : listeners) {
-				listener.onDolbyDisconnected();
+		notifyListeners(listener -> listener.onDolbyDisconnected());
+	}
+	
+	@Override
+	protected boolean onReceiveCommandOutput(CharSequence output) {
+		// Wait until we get the desired response.
+		DolbyCommand expected = getResponseType(getCurrentCommand().cmd);
+		return onReceiveResponse(output) == expected || expected == null;
+	}
+
+	@Override
+	protected DolbyCommand onReceiveResponse(CharSequence response) {
+		// Parse the response
+		if (faderMatcher.reset(response).find()) {
+			updateVolumeValue(Integer.parseInt(response, faderMatcher.start(1), faderMatcher.end(1), 10));
+			unreportedDelta = getDeltaAfterAnswer();
+			return DolbyCommand.GetVolume;
+		}
+
+		if (muteMatcher.reset(response).find()) {
+			updateMuteStatus(Integer.parseInt(response, muteMatcher.start(1), muteMatcher.end(1), 10) != 0);
+			return DolbyCommand.GetMuteStatus;
+		}
+
+		if (inputModeMatcher.reset(response).find()) {
+			int ordInputMode = indexOf(inputModeNames, response, inputModeMatcher.start(1), inputModeMatcher.end(1));
+			if (ordInputMode != -1) {
+				updateInputMode(InputMode.values()[ordInputMode]);
+			} else {
+				System.err.printf("%s: Received invalid input_mode: %s%n", LOG_TAG, inputModeMatcher.group(1));
 			}
+			return DolbyCommand.GetInputMode;
 		}
+
+		if (decodeModeMatcher.reset(response).find()) {
+			int ordDecodeMode = indexOf(decodeModeNames, response, decodeModeMatcher.start(1),
+					decodeModeMatcher.end(1));
+			if (ordDecodeMode != -1) {
+				updateDecodeMode(DecodeMode.values()[ordDecodeMode]);
+			} else {
+				System.err.printf("%s: Received invalid pcm_2_channel_decode_mode_1: %s%n", LOG_TAG,
+						decodeModeMatcher.group(1));
+			}
+			return DolbyCommand.GetDecodeMode;
+		}
+
+		return null;
 	}
-	
+
+	/**
+	 * Find the name in the list without creating a String of the response first.
+	 */
+	private static int indexOf(List<String> names, CharSequence response, int start, int end) {
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			if (name.length() != end - start)
+				continue;
+
+			boolean equal = true;
+			for (int j = 0; j < name.length() && equal; j++)
+				equal = name.charAt(j) == response.charAt(start + j);
+
+			if (equal)
+				return i;
+		}
+		return -1;
+	}
+
 	@Override
-	protected boolean onReceiveCommandOutput(String output) {
-		boolean handled = false;
-		Matcher matcher;
-		switch (getCurrentCommand().cmd) {
+	protected DolbyCommand getResponseType(DolbyCommand cmd) {
+		if (cmd == null)
+			return null;
+
+		switch (cmd) {
 		case GetVolume:
 		case SetVolume:
-			// Parse the response
-			matcher = faderPattern.matcher(output);
-			// Wait until we get the desired response.
-			while (matcher.find()) {
-				String volume = matcher.group(1);
-				if (volume != null) {
-					updateVolumeValue(Integer.parseInt(volume));
-					handled = true;
-				}
-			}
-			break;
+			return DolbyCommand.GetVolume;
+		// Not every CP750 answers it, so the new volume must not be taken as its
+		// answer. The GetVolume sent afterwards waits for that.
+		case ChangeVolume:
+			return DolbyCommand.ChangeVolume;
 		case GetMuteStatus:
 		case SetMuteStatus:
-			// Parse the response
-			matcher = mutePattern.matcher(output);
-			// Wait until we get the desired response.
-			while (matcher.find()) {
-				String muted = matcher.group(1);
-				if (muted != null) {
-					updateMuteStatus(Integer.parseInt(muted) != 0);
-					handled = true;
-				}
-			}
-			break;
+			return DolbyCommand.GetMuteStatus;
 		case GetInputMode:
 		case SetInputMode:
-			// Parse the response
-			matcher = inputModePattern.matcher(output);
-			// Wait until we get the desired response.
-			while (matcher.find()) {
-				String inputMode = matcher.group(1);
-				if (inputMode != null) {
-					int ordInputMode = inputModeNames.indexOf(inputMode);
-					if (ordInputMode != -1) {
-						updateInputMode(InputMode.values()[ordInputMode]);
-					} else {
-						System.err.printf("%s: Received invalid input_mode: %s%n", LOG_TAG, inputMode);
-					}
-					handled = true;
-				}
-			}
-			break;
+			return DolbyCommand.GetInputMode;
 		case GetDecodeMode:
 		case SetDecodeMode:
-			// Parse the response
-			matcher = decodeModePattern.matcher(output);
-			// Wait until we get the desired response.
-			while (matcher.find()) {
-				String decodeMode = matcher.group(1);
-				if (decodeMode != null) {
-					int ordDecodeMode = decodeModeNames.indexOf(decodeMode);
-					if (ordDecodeMode != -1) {
-						updateDecodeMode(DecodeMode.values()[ordDecodeMode]);
-					} else {
-						System.err.printf("%s: Received invalid pcm_2_channel_decode_mode_1: %s%n",
-								LOG_TAG, decodeMode);
-					}
-					handled = true;
-				}
-			}
-			break;
-		default:
-			handled = true;
-			break;
+			return DolbyCommand.GetDecodeMode;
 		}
-		return handled;
+		return null;
 	}
-	
+
 	@Override
-	protected String getCommandString(CommandContainer<DolbyCommand> cmd) {
-		String command = null;
-		switch (cmd.cmd) {
-		case GetVolume:
-			command = "cp750.sys.fader ?";
-			break;
+	protected int getMaxRetries(DolbyCommand cmd) {
+		switch (cmd) {
+		// Setting an absolute value twice doesn't hurt.
 		case SetVolume:
-			command = "cp750.sys.fader " + cmd.value;
-			break;
-		case IncreaseVolume:
-			command = "cp750.ctrl.fader_delta 1";
-			break;
-		case DecreaseVolume:
-			command = "cp750.ctrl.fader_delta -1";
-			break;
-		case GetMuteStatus:
-			command = "cp750.sys.mute ?";
-			break;
 		case SetMuteStatus:
-			command = "cp750.sys.mute " + cmd.value;
-			break;
 		case SetInputMode:
-			command = "cp750.sys.input_mode " + inputModeNames.get(cmd.value);
-			break;
-		case GetInputMode:
-			command = "cp750.sys.input_mode ?";
-			break;
 		case SetDecodeMode:
-			command = "cp750.sys.pcm_2_channel_decode_mode_1 " + decodeModeNames.get(cmd.value);
-			break;
-		case GetDecodeMode:
-			command = "cp750.sys.pcm_2_channel_decode_mode_1 ?";
-			break;
+			return 2;
+		// The first try might have been applied already. Don't change the
+		// volume twice.
+		case ChangeVolume:
+		default:
+			return 0;
+		}
+	}
+
+	@Override
+	protected int getCommandValue(CommandContainer<DolbyCommand> cmd) {
+		if (cmd.cmd != DolbyCommand.ChangeVolume || volume == -1)
+			return cmd.value;
+
+		// Don't try to move the fader out of its range. Start from where the
+		// steps which are still on their way will leave it. Remember the step
+		// which is actually sent, so the next one can do the same.
+		int expected = volume + unreportedDelta;
+		cmd.value = clampVolume(expected + cmd.value) - expected;
+		unreportedDelta += cmd.value;
+		return cmd.value;
+	}
+
+	/**
+	 * The CP750 answers in order. A fader response includes all steps sent before
+	 * the command it answers, which is the oldest one waiting for a fader
+	 * response, but none sent after it.
+	 *
+	 * @return Sum of the steps in flight which the fader response we just
+	 *         received doesn't include yet.
+	 */
+	private int getDeltaAfterAnswer() {
+		int delta = 0;
+		boolean answered = false;
+		for (CommandContainer<DolbyCommand> command : getCommandsInFlight()) {
+			if (command.cmd == DolbyCommand.ChangeVolume)
+				delta += command.value;
+			else if (!answered && getResponseType(command.cmd) == DolbyCommand.GetVolume) {
+				// Everything before the answered command is included.
+				answered = true;
+				delta = 0;
+			}
 		}
-		return command;
+		return delta;
 	}
 
-	public void increaseVolume() {
-		addCommand(DolbyCommand.IncreaseVolume);
-		// Get the new volume right away afterwards.
-		addCommand(DolbyCommand.GetVolume);
+	@Override
+	protected CommandContainer<DolbyCommand> mergeCommands(CommandContainer<DolbyCommand> pending,
+			CommandContainer<DolbyCommand> added) {
+		// Sum up the steps while someone holds down the volume button, so no step
+		// is lost and the whole ramp is sent as one command.
+		if (added.cmd == DolbyCommand.ChangeVolume) {
+			int delta = Math.max(-MAX_VOLUME, Math.min(MAX_VOLUME, pending.value + added.value));
+			return new CommandContainer<>(DolbyCommand.ChangeVolume, delta, added.ignoreResponse);
+		}
+
+		// Only the latest value of everything else counts.
+		return added;
 	}
 
-	public void decreaseVolume() {
-		addCommand(DolbyCommand.DecreaseVolume);
-		// Get the new volume right away afterwards.
-		addCommand(DolbyCommand.GetVolume);
+	// Not every CP750 answers a fader change, so ask for the new volume right
+	// away afterwards. The pending request moves behind the latest step, so
+	// there is only one after the whole ramp. It also confirms the step.
+	public void increaseVolume(ICommandCallback callback) {
+		addCommand(DolbyCommand.ChangeVolume, 1, UseResponse.IgnoreResponse);
+		addCommand(DolbyCommand.GetVolume, 0, UseResponse.WaitForResponse, callback);
+	}
+
+	public void decreaseVolume(ICommandCallback callback) {
+		addCommand(DolbyCommand.ChangeVolume, -1, UseResponse.IgnoreResponse);
+		addCommand(DolbyCommand.GetVolume, 0, UseResponse.WaitForResponse, callback);
 	}
 
 	public int getVolume() {
 		return volume;
 	}
 
-	public void setVolume(int volume) {
-		addCommand(DolbyCommand.SetVolume, volume);
+	public void setVolume(int volume, ICommandCallback callback) {
+		addCommand(DolbyCommand.SetVolume, clampVolume(volume), UseResponse.WaitForResponse, callback);
+	}
+
+	private static int clampVolume(int volume) {
+		return Math.max(MIN_VOLUME, Math.min(MAX_VOLUME, volume));
 	}
 
 	public boolean isMuted() {
 		return muted;
 	}
 
-	public void setMuted(boolean muted) {
-		addCommand(DolbyCommand.SetMuteStatus, muted ? 1 : 0);
+	public void setMuted(boolean muted, ICommandCallback callback) {
+		addCommand(DolbyCommand.SetMuteStatus, muted ? 1 : 0, UseResponse.WaitForResponse, callback);
 	}
 
 	public InputMode getInputMode() {
@@ -226,15 +297,19 @@ public class DolbySocketCommands extends BaseCommands<IDolbyStatusUpdateReceiver
 	}
 
 	public void setInputMode(InputMode mode) {
-		addCommand(DolbyCommand.SetInputMode, mode.ordinal());
+		setInputMode(mode, null);
+	}
+
+	public void setInputMode(InputMode mode, ICommandCallback callback) {
+		addCommand(DolbyCommand.SetInputMode, mode.ordinal(), UseResponse.WaitForResponse, callback);
 	}
 
 	public DecodeMode getDecodeMode() {
 		return decodeMode;
 	}
 
-	public void setDecodeMode(DecodeMode mode) {
-		addCommand(DolbyCommand.SetDecodeMode, mode.ordinal());
+	public void setDecodeMode(DecodeMode mode, ICommandCallback callback) {
+		addCommand(DolbyCommand.SetDecodeMode, mode.ordinal(), UseResponse.WaitForResponse, callback);
 	}
 
 	private void updateVolumeValue(int volume) {
@@ -245,11 +320,7 @@ public class DolbySocketCommands extends BaseCommands<IDolbyStatusUpdateReceiver
 		this.volume = volume;
 
 		// Notify listeners.
-		synchronized (listeners) {
-			for (IDolbyStatusUpdateReceiver listener : listeners) {
-				listener.onVolumeChanged(volume);
-			}
-		}
+		notifyListeners(listener -> listener.onVolumeChanged(volume));
 	}
 
 	private void updateMuteStatus(boolean muted) {
@@ -260,11 +331,7 @@ public class DolbySocketCommands extends BaseCommands<IDolbyStatusUpdateReceiver
 		this.muted = muted;
 
 		// Notify listeners.
-		synchronized (listeners) {
-			for (IDolbyStatusUpdateReceiver listener : listeners) {
-				listener.onMuteStatusChanged(muted);
-			}
-		}
+		notifyListeners(listener -> listener.onMuteStatusChanged(muted));
 	}
 
 	private void updateInputMode(InputMode mode) {
@@ -275,11 +342,7 @@ public class DolbySocketCommands extends BaseCommands<IDolbyStatusUpdateReceiver
 		this.inputMode = mode;
 
 		// Notify listeners.
-		synchronized (listeners) {
-			for (IDolbyStatusUpdateReceiver listener : listeners) {
-				listener.onInputModeChanged(mode);
-			}
-		}
+		notifyListeners(listener -> listener.onInputModeChanged(mode));
 	}
 
 	private void updateDecodeMode(DecodeMode mode) {
@@ -290,88 +353,67 @@ public class DolbySocketCommands extends BaseCommands<IDolbyStatusUpdateReceiver
 		this.decodeMode = mode;
 
 		// Notify listeners.
-		synchronized (listeners) {
-			for (IDolbyStatusUpdateReceiver listener : listeners) {
-				listener.onDecodeModeChanged(mode);
-			}
-		}
+		notifyListeners(listener -> listener.onDecodeModeChanged(mode));
 	}
 
 	@Override
-	public boolean onMessage(BaseMessage base_msg, String message)
-			throws WebSocketCommandException, JsonSyntaxException {
+	public void registerRoutes(MessageRouter router) {
 		// Handle all Dolby Volume related commands.
-		if (!"volume".equals(base_msg.getMessageType()))
-			return false;
-
-		switch (base_msg.getAction()) {
-		case "set_volume":
-			SetVolumeMessage setVolumeMsg = gson.fromJson(message, SetVolumeMessage.class);
+		router.add("volume", "set_volume", SetVolumeMessage.class, (conn, msg) -> {
 			if (socket.isConnected())
-				setVolume(setVolumeMsg.getVolume());
+				setVolume(msg.getVolume(), msg.getCallback());
 			else
 				throw new WebSocketCommandException("Failed to change volume. No connection to Dolby audio processor.");
-			return true;
+		});
 
-		case "increase_volume":
+		router.add("volume", "increase_volume", (conn, msg) -> {
 			if (socket.isConnected())
-				increaseVolume();
+				increaseVolume(msg.getCallback());
 			else
 				throw new WebSocketCommandException(
 						"Failed to increase volume. No connection to Dolby audio processor.");
+		});
 
-			return true;
-
-		case "decrease_volume":
+		router.add("volume", "decrease_volume", (conn, msg) -> {
 			if (socket.isConnected())
-				decreaseVolume();
+				decreaseVolume(msg.getCallback());
 			else
 				throw new WebSocketCommandException(
 						"Failed to decrease volume. No connection to Dolby audio processor.");
+		});
 
-			return true;
-
-		case "set_mute_status":
-			SetMuteStatusMessage setMuteStatusMsg = gson.fromJson(message, SetMuteStatusMessage.class);
+		router.add("volume", "set_mute_status", SetMuteStatusMessage.class, (conn, msg) -> {
 			if (socket.isConnected())
-				setMuted(setMuteStatusMsg.isMuted());
+				setMuted(msg.isMuted(), msg.getCallback());
 			else
 				throw new WebSocketCommandException(
 						"Failed to change mute state. No connection to Dolby audio processor.");
+		});
 
-			return true;
-
-		case "set_input_mode":
-			SetInputModeMessage setInputModeMsg = gson.fromJson(message, SetInputModeMessage.class);
+		router.add("volume", "set_input_mode", SetInputModeMessage.class, (conn, msg) -> {
 			if (socket.isConnected()) {
-				int desiredMode = setInputModeMsg.getInputMode();
+				int desiredMode = msg.getInputMode();
 				if (desiredMode < 0 || desiredMode >= InputMode.values().length)
 					throw new WebSocketCommandException("Invalid input mode " + desiredMode
 							+ ". Has to be between 0 and " + InputMode.values().length + ".");
 				InputMode mode = InputMode.values()[desiredMode];
-				setInputMode(mode);
+				setInputMode(mode, msg.getCallback());
 			} else
 				throw new WebSocketCommandException(
 						"Failed to change input mode. No connection to Dolby audio processor.");
+		});
 
-			return true;
-
-		case "set_decode_mode":
-			SetDecodeModeMessage setDecodeModeMsg = gson.fromJson(message, SetDecodeModeMessage.class);
+		router.add("volume", "set_decode_mode", SetDecodeModeMessage.class, (conn, msg) -> {
 			if (socket.isConnected()) {
-				int desiredMode = setDecodeModeMsg.getDecodeMode();
+				int desiredMode = msg.getDecodeMode();
 				if (desiredMode < 0 || desiredMode >= DecodeMode.values().length)
 					throw new WebSocketCommandException("Invalid decode mode " + desiredMode
 							+ ". Has to be between 0 and " + DecodeMode.values().length + ".");
 				DecodeMode mode = DecodeMode.values()[desiredMode];
-				setDecodeMode(mode);
+				setDecodeMode(mode, msg.getCallback());
 			} else
 				throw new WebSocketCommandException(
 						"Failed to change decode mode. No connection to Dolby audio processor.");
-
-			return true;
-		}
-
-		return false;
+		});
 	}
 }
@@ -0,0 +1,61 @@
+package de.schunterkino.kinoapi.executor;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one after another in the order they were added on the
+ * {@link TaskExecutor}. No thread is kept around while there is nothing to do.
+ */
+public class SerialExecutor implements Executor {
+
+	private String logTag;
+	private ConcurrentLinkedQueue<Runnable> tasks;
+
+	// Set while a task of the TaskExecutor is working through the queue.
+	private AtomicBoolean running;
+
+	public SerialExecutor(String logTag) {
+		this.logTag = logTag;
+		this.tasks = new ConcurrentLinkedQueue<>();
+		this.running = new AtomicBoolean(false);
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		schedule();
+	}
+
+	private void schedule() {
+		if (!running.compareAndSet(false, true))
+			return;
+
+		try {
+			TaskExecutor.execute(this::runTasks);
+		} catch (RejectedExecutionException e) {
+			// We're shutting down. Nobody is interested anymore.
+			tasks.clear();
+			running.set(false);
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				System.err.printf("%s: Error in background task: %s%n", logTag, e.getMessage());
+				e.printStackTrace();
+			}
+		}
+		running.set(false);
+
+		// Something might have been added after we looked the last time.
+		if (!tasks.isEmpty())
+			schedule();
+	}
+}
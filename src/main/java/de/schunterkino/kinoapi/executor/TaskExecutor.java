@@ -0,0 +1,134 @@
+package de.schunterkino.kinoapi.executor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs all background work of the server like the device connections, audio
+ * playback and listener notifications. Every task gets its own virtual thread
+ * if the JVM supports them. Older JVMs share a small pool of platform threads
+ * which are reused after a task finished. Tasks wait in a bounded queue while
+ * all of them are busy and are rejected if that's full too.
+ */
+public class TaskExecutor {
+
+	private static final String THREAD_NAME_PREFIX = "kinoapi-";
+
+	// Threads of the fallback pool are stopped after being idle for X seconds.
+	private static final int IDLE_THREAD_TIMEOUT = 60;
+
+	// Size of the fallback pool. The device loops, the slow client check, audio
+	// playback and the listener notifications of every device need about ten.
+	private static final int MAX_PLATFORM_THREADS = 16;
+
+	// Tasks waiting for a thread of the fallback pool.
+	private static final int MAX_QUEUED_TASKS = 64;
+
+	private static final ExecutorService executor;
+	private static final boolean virtual;
+
+	static {
+		ExecutorService virtualExecutor = createVirtualThreadExecutor();
+		virtual = virtualExecutor != null;
+		if (virtual)
+			executor = virtualExecutor;
+		else
+			executor = createPlatformThreadPool();
+	}
+
+	/**
+	 * Run a task in the background.
+	 * 
+	 * @return Future to wait for or cancel the task.
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             Thrown after {@link #shutdown(long)} or if too many tasks are
+	 *             waiting already.
+	 */
+	public static Future<?> submit(Runnable task) {
+		return executor.submit(task);
+	}
+
+	/**
+	 * Run a task in the background without keeping track of it.
+	 * 
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             Thrown after {@link #shutdown(long)} or if too many tasks are
+	 *             waiting already.
+	 */
+	public static void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * @return True if tasks run on virtual threads.
+	 */
+	public static boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Stop accepting new tasks and wait for the running ones to finish. Tasks
+	 * which don't finish in time are interrupted.
+	 * 
+	 * @param timeout
+	 *            Time to wait for the tasks in milliseconds.
+	 * @return True if all tasks finished in time.
+	 */
+	public static boolean shutdown(long timeout) {
+		executor.shutdown();
+		try {
+			if (executor.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+				return true;
+		} catch (InterruptedException e) {
+			// We want to stop anyways.
+		}
+		executor.shutdownNow();
+		return false;
+	}
+
+	// Virtual threads are only available on Java 21 and newer, but we're still
+	// building for older versions. Look them up at runtime.
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME_PREFIX, 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+					.invoke(null, factory);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static ExecutorService createPlatformThreadPool() {
+		AtomicInteger threadNumber = new AtomicInteger();
+		ThreadFactory factory = runnable -> {
+			Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		};
+		// Start a new thread for every task until the pool is full, so the device
+		// loops never wait in the queue. Idle threads are reused for the short
+		// tasks and stopped after a while.
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_PLATFORM_THREADS, MAX_PLATFORM_THREADS,
+				IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_TASKS), factory,
+				TaskExecutor::rejectTask);
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	private static void rejectTask(Runnable task, ThreadPoolExecutor pool) {
+		if (!pool.isShutdown())
+			System.err.printf("Tasks: Too many background tasks. %d running, %d waiting. Dropping one.%n",
+					pool.getActiveCount(), pool.getQueue().size());
+		throw new RejectedExecutionException("Task rejected by " + pool);
+	}
+}
@@ -1,99 +1,64 @@
 package de.schunterkino.kinoapi.jnior;
 
-import com.google.gson.JsonSyntaxException;
+import java.util.Arrays;
+import java.util.List;
 
 import de.schunterkino.kinoapi.sockets.BaseCommands;
-import de.schunterkino.kinoapi.sockets.CommandContainer;
+import de.schunterkino.kinoapi.sockets.ICommandCallback;
+import de.schunterkino.kinoapi.websocket.MessageRouter;
 import de.schunterkino.kinoapi.websocket.WebSocketCommandException;
-import de.schunterkino.kinoapi.websocket.messages.BaseMessage;
 import de.schunterkino.kinoapi.websocket.messages.jnior.SetLightLevelMessage;
 
 public class JniorSocketCommands extends BaseCommands<IJniorStatusUpdateReceiver, JniorCommand> {
 
-	protected int UPDATE_INTERVAL = 10000;
+	// Relay outputs selecting the light levels 0 to 3.
+	private static final List<String> lightLevelRelays = Arrays.asList("1", "2", "3", "4");
 
 	public JniorSocketCommands() {
-		super();
+		super(JniorCommand.class, "jnior");
 		ignoreResponses();
 		
 		watchCommand(JniorCommand.KeepAlive);
+
+		// Close relay output 1 to 4 for 500 ms to select the light level.
+		encoder.add(JniorCommand.SetLightLevel, "c%sp=500", lightLevelRelays);
+		// Just a line break.
+		encoder.add(JniorCommand.KeepAlive, "");
 	}
 
 	@Override
 	protected void onSocketConnected() {
 		// Notify listeners.
-		synchronized (listeners) {
-			for (IJniorStatusUpdateReceiver listener : listeners) {
-				listener.onJniorConnected();
-			}
-		}
+		notifyListeners(listener -> listener.onJniorConnected());
 	}
 
 	@Override
 	protected void onSocketDisconnected() {
 		// Notify listeners.
-		synchronized (listeners) {
-			for (IJniorStatusUpdateReceiver listener : listeners) {
-				listener.onJniorDisconnected();
-			}
-		}
+		notifyListeners(listener -> listener.onJniorDisconnected());
 	}
 
 	@Override
-	protected boolean onReceiveCommandOutput(String input) {
+	protected boolean onReceiveCommandOutput(CharSequence input) {
 		return true; // Don't care for stuff sent to us.
 	}
 
-	@Override
-	protected String getCommandString(CommandContainer<JniorCommand> cmd) {
-		String command = null;
-		switch (cmd.cmd) {
-		case SetLightLevel:
-			switch (cmd.value) {
-			case 0:
-				// Close relay output 1 for 500 ms.
-				command = "c1p=500";
-				break;
-			case 1:
-				command = "c2p=500";
-				break;
-			case 2:
-				command = "c3p=500";
-				break;
-			case 3:
-				command = "c4p=500";
-				break;
-			}
-			break;
-		case KeepAlive:
-			command = "";
-			break;
-		}
-		return command;
-	}
-
-	public void setLightLevel(int level) {
-		addCommand(JniorCommand.SetLightLevel, level);
+	public void setLightLevel(int level, ICommandCallback callback) {
+		addCommand(JniorCommand.SetLightLevel, level, UseResponse.WaitForResponse, callback);
 	}
 
 	@Override
-	public boolean onMessage(BaseMessage base_msg, String message)
-			throws WebSocketCommandException, JsonSyntaxException {
+	public void registerRoutes(MessageRouter router) {
 		// Handle all Jnior managed commands.
-		if (!"lights".equals(base_msg.getMessageType()))
-			return false;
+		router.add("lights", "set_light_level", SetLightLevelMessage.class, (conn, msg) -> {
+			if (socket.isConnected()) {
+				if (msg.getLightLevel() < 0 || msg.getLightLevel() >= lightLevelRelays.size())
+					throw new WebSocketCommandException("Invalid light level: " + msg.getLightLevel());
 
-		switch (base_msg.getAction()) {
-		case "set_light_level":
-			SetLightLevelMessage setLightLevelMsg = gson.fromJson(message, SetLightLevelMessage.class);
-			if (socket.isConnected())
-				setLightLevel(setLightLevelMsg.getLightLevel());
-			else
+				setLightLevel(msg.getLightLevel(), msg.getCallback());
+			} else
 				throw new WebSocketCommandException(
 						"Failed to change light level. No connection to Jnior automation box.");
-			return true;
-		}
-
-		return false;
+		});
 	}
 }
@@ -0,0 +1,93 @@
+package de.schunterkino.kinoapi.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values like latencies in microseconds.
+ * Every power of two is split into a few linear buckets, so percentiles are
+ * accurate to about 12% while recording a value only costs two atomic
+ * increments.
+ */
+public class Histogram {
+
+	// Every power of two is split into 2^SUB_BUCKET_BITS buckets.
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private AtomicLongArray buckets;
+	private LongAdder count;
+	private AtomicLong max;
+
+	public Histogram() {
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.count = new LongAdder();
+		this.max = new AtomicLong();
+	}
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+
+		buckets.incrementAndGet(getBucket(value));
+		count.increment();
+		max.accumulateAndGet(value, Math::max);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            Percentile between 0 and 100.
+	 * @return The highest value of the bucket the percentile falls into. 0 if
+	 *         nothing was recorded yet.
+	 */
+	public long getPercentile(double percentile) {
+		// Values might be added while we're looking. That's fine for statistics.
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(getBucketEnd(i), getMax());
+		}
+		return getMax();
+	}
+
+	private static int getBucket(long value) {
+		// Small values get a bucket each.
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long getBucketEnd(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,73 @@
+package de.schunterkino.kinoapi.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Global registry of counters, gauges and histograms describing the runtime
+ * behavior of the device connections. Can be updated from any thread without locking.
+ */
+public class Metrics {
+
+	// Values which only go up, like the number of timeouts.
+	private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+	// Values which describe the current state, like the polling interval.
+	private static final ConcurrentHashMap<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+
+	// Distributions of values, like command latencies.
+	private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+	public static void increment(String name) {
+		add(name, 1);
+	}
+
+	public static void add(String name, long value) {
+		counters.computeIfAbsent(name, k -> new LongAdder()).add(value);
+	}
+
+	public static void setGauge(String name, long value) {
+		gauges.computeIfAbsent(name, k -> new AtomicLong()).set(value);
+	}
+
+	/**
+	 * Get the histogram with the given name. Keep the returned instance around to
+	 * record values without looking it up every time.
+	 */
+	public static Histogram getHistogram(String name) {
+		return histograms.computeIfAbsent(name, k -> new Histogram());
+	}
+
+	/**
+	 * @return Sorted copy of the current values of all counters.
+	 */
+	public static Map<String, Long> getCounters() {
+		TreeMap<String, Long> values = new TreeMap<>();
+		counters.forEach((name, counter) -> values.put(name, counter.sum()));
+		return values;
+	}
+
+	/**
+	 * @return Sorted copy of the current values of all gauges.
+	 */
+	public static Map<String, Long> getGauges() {
+		TreeMap<String, Long> values = new TreeMap<>();
+		gauges.forEach((name, gauge) -> values.put(name, gauge.get()));
+		return values;
+	}
+
+	/**
+	 * @return Sorted list of all histograms which recorded values.
+	 */
+	public static Map<String, Histogram> getHistograms() {
+		TreeMap<String, Histogram> values = new TreeMap<>();
+		histograms.forEach((name, histogram) -> {
+			if (histogram.getCount() > 0)
+				values.put(name, histogram);
+		});
+		return values;
+	}
+}
@@ -2,47 +2,105 @@ package de.schunterkino.kinoapi.sockets;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.Socket;
-import java.nio.charset.Charset;
-import java.time.Duration;
-import java.time.Instant;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map.Entry;
-
-import com.google.gson.Gson;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import de.schunterkino.kinoapi.App;
+import de.schunterkino.kinoapi.executor.SerialExecutor;
+import de.schunterkino.kinoapi.metrics.Histogram;
+import de.schunterkino.kinoapi.metrics.Metrics;
+import de.schunterkino.kinoapi.sockets.CommandQueue.Priority;
 import de.schunterkino.kinoapi.websocket.IWebSocketMessageHandler;
 import purejavacomm.SerialPort;
 
-public abstract class BaseCommands<ListenerInterface, CommandEnum> implements IWebSocketMessageHandler {
+public abstract class BaseCommands<ListenerInterface, CommandEnum extends Enum<CommandEnum>>
+		implements IWebSocketMessageHandler {
 
 	protected String LOG_TAG = this.getClass().getSimpleName();
 
-	protected int UPDATE_INTERVAL = 2000;
+	// Name of the device used for configuration keys and metrics.
+	protected String deviceName;
 
 	protected LineWrapper socket;
-	protected boolean stop;
+	protected volatile boolean stop;
 	protected LinkedList<ListenerInterface> listeners;
-	protected Gson gson;
+	// Informs the listeners in order without holding up the connection.
+	private SerialExecutor listenerExecutor;
 
-	private LinkedList<CommandContainer<CommandEnum>> commandQueue;
+	private CommandQueue<CommandEnum> commandQueue;
 	private CommandContainer<CommandEnum> noneCommand = new CommandContainer<>(null);
-	private CommandContainer<CommandEnum> currentCommand = noneCommand;
 
-	// A map to remember when we last sent a command.
-	// The command is added to the queue again if the last time is longer than
-	// UPDATE_INTERVAL ago.
-	private HashMap<CommandEnum, Instant> updateCommands;
+	// Commands which were sent and wait for their response. The oldest command is
+	// first.
+	private LinkedList<CommandContainer<CommandEnum>> inFlight;
+
+	// Commands with a callback which were encoded, but not written yet, and
+	// won't be answered.
+	private LinkedList<CommandContainer<CommandEnum>> unanswered;
+
+	// Error the device answered with. Set by the subclass while parsing a
+	// response.
+	private String responseError;
+
+	// How many commands may wait for their response at the same time.
+	private int maxInFlight;
+
+	// Match responses to the commands in flight through onReceiveResponse instead
+	// of handing everything to the current command.
+	private boolean pipelined;
+
+	// Character which ends a single response of the device.
+	private char responseTerminator;
+
+	// A map to remember when we last sent a command in SocketReactor.now()
+	// milliseconds. The command is added to the queue again if the last time is
+	// longer than the current polling interval ago.
+	private EnumMap<CommandEnum, Long> updateCommands;
+	private PollingScheduler pollingScheduler;
 
 	// Maybe we're not interested at all in what the server has to say.
 	// Don't wait for responses.
 	private boolean ignoreResponses;
 
-	// Aggregate returned strings until our expected value is in there.
-	// This helps if we read from the socket faster than the server is sending data.
-	private String fullResponse;
+	// Handler to wake up the connection when a new command was queued.
+	private volatile Runnable wakeupHandler;
+
+	// Time in milliseconds to wait for a response before giving up on the
+	// command. 0 to wait forever.
+	private int responseTimeout;
+
+	// Drop the connection if that many commands in a row weren't answered.
+	private int maxResponseTimeouts;
+	private int consecutiveTimeouts;
+
+	// Time in milliseconds a command may wait in the queue before it's outdated.
+	private int commandTtl;
+
+	// Split the received data into single responses.
+	private ResponseFramer framer;
+
+	// Turns the commands into bytes. Subclasses add the text of their commands.
+	protected CommandEncoder<CommandEnum> encoder;
+
+	// Commands encoded in one pass are written together.
+	private ByteBuffer output;
+
+	// Latencies of every command in microseconds. How long it waited in the
+	// queue, how long the device took to answer and how long we took to parse
+	// the answer.
+	private EnumMap<CommandEnum, Histogram> queueWaitHistograms;
+	private EnumMap<CommandEnum, Histogram> roundTripHistograms;
+	private EnumMap<CommandEnum, Histogram> parseHistograms;
 
 	// Readable way to add a command and specify if we're interested in the
 	// response.
@@ -50,28 +108,81 @@ public abstract class BaseCommands<ListenerInterface, CommandEnum> implements IW
 		WaitForResponse, IgnoreResponse
 	}
 
-	protected BaseCommands() {
+	protected BaseCommands(Class<CommandEnum> commandClass, String deviceName) {
+		this.deviceName = deviceName;
 		this.socket = null;
 		this.stop = false;
 		this.listeners = new LinkedList<>();
-		this.gson = new Gson();
-		this.commandQueue = new LinkedList<>();
-		this.updateCommands = new HashMap<>();
+		this.listenerExecutor = new SerialExecutor(LOG_TAG);
+		this.commandQueue = new CommandQueue<>(commandClass, this::mergeCallbacks);
+		this.updateCommands = new EnumMap<>(commandClass);
+		this.pollingScheduler = new PollingScheduler(deviceName);
+		this.inFlight = new LinkedList<>();
+		this.unanswered = new LinkedList<>();
+		this.responseError = null;
+		this.maxInFlight = 1;
+		this.pipelined = false;
+		this.responseTerminator = '\n';
 
 		this.ignoreResponses = false;
-		this.fullResponse = "";
+		this.wakeupHandler = null;
+		this.responseTimeout = App.getConfigurationInteger("response_timeout");
+		this.maxResponseTimeouts = App.getConfigurationInteger("max_response_timeouts");
+		this.consecutiveTimeouts = 0;
+		this.commandTtl = App.getConfigurationInteger("command_ttl");
+		this.framer = null;
+		this.encoder = new CommandEncoder<>(commandClass);
+		this.output = ByteBuffer.allocate(1024);
+
+		this.queueWaitHistograms = new EnumMap<>(commandClass);
+		this.roundTripHistograms = new EnumMap<>(commandClass);
+		this.parseHistograms = new EnumMap<>(commandClass);
+		for (CommandEnum cmd : commandClass.getEnumConstants()) {
+			String prefix = deviceName + "." + cmd + ".";
+			queueWaitHistograms.put(cmd, Metrics.getHistogram(prefix + "queue_wait_us"));
+			roundTripHistograms.put(cmd, Metrics.getHistogram(prefix + "round_trip_us"));
+			parseHistograms.put(cmd, Metrics.getHistogram(prefix + "parse_us"));
+		}
 	}
 
 	public void stop() {
 		stop = true;
+		if (wakeupHandler != null)
+			wakeupHandler.run();
 	}
 
-	public void setSocket(Socket socket) {
-		this.socket = new LineWrapper(socket);
+	public void setSocketChannel(SocketChannel channel) {
+		this.socket = new LineWrapper(channel);
+		this.framer = new ResponseFramer(responseTerminator, true);
 	}
 
 	public void setSerialPort(SerialPort serial) {
 		this.socket = new LineWrapper(serial);
+		this.framer = new ResponseFramer(responseTerminator, false);
+	}
+
+	/**
+	 * Set a handler which is informed when a new command was queued, so the
+	 * connection can send it right away.
+	 */
+	public void setWakeupHandler(Runnable wakeupHandler) {
+		this.wakeupHandler = wakeupHandler;
+	}
+
+	/**
+	 * Adapt the polling interval to the number of connected websocket clients.
+	 * 
+	 * @param count
+	 *            Number of connected websocket clients.
+	 */
+	public void setClientCount(int count) {
+		// Get the status right away for the first client.
+		if (pollingScheduler.setClientCount(count) && wakeupHandler != null)
+			wakeupHandler.run();
+	}
+
+	public String getDeviceName() {
+		return deviceName;
 	}
 
 	public void registerListener(ListenerInterface listener) {
@@ -80,108 +191,487 @@ public abstract class BaseCommands<ListenerInterface, CommandEnum> implements IW
 		}
 	}
 
-	public void processSocket() {
-		onSocketConnected();
+	/**
+	 * Call all listeners in the background. Events are delivered in the order
+	 * they were raised. The event is handled later, so it must not read fields
+	 * which might change in the meantime.
+	 * 
+	 * @param event
+	 *            Calls the matching method of a listener.
+	 */
+	protected void notifyListeners(Consumer<ListenerInterface> event) {
+		listenerExecutor.execute(() -> {
+			synchronized (listeners) {
+				for (ListenerInterface listener : listeners) {
+					event.accept(listener);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Blocking loop to process the commands on a stream based connection like the
+	 * serial port. Returns when the connection is broken or we're stopped.
+	 * 
+	 * @param dataEvents
+	 *            True if the connection calls {@link #onDataAvailable()} when the
+	 *            device sent something. The thread sleeps until then instead of
+	 *            blocking in a read.
+	 */
+	public void processSocket(boolean dataEvents) {
+		// Wake up this thread when a new command is queued.
+		Thread deviceThread = Thread.currentThread();
+		setWakeupHandler(() -> LockSupport.unpark(deviceThread));
+
+		socketOpened();
 
 		// Go in a loop to process the data on the socket.
 		try {
+			InputStream in = socket.getInputStream();
 			do {
-				// We're waiting on a response for that command. See if there's
-				// something here.
-				if (isWaitingForResponse()) {
-					String ret = read();
-					// Nothing yet. Keep waiting.
-					if (ret == null)
-						continue;
-
-					// Don't spam the commands that are sent every
-					// UPDATE_INTERVAL seconds.
-					if (!isRepeatingCommand(currentCommand.cmd))
-						System.out.printf("%s: Current command: %s. Received: %s%n", LOG_TAG,
-								currentCommand.cmd.toString(), ret.trim());
-
-					// Add the last bit to the end.
-					fullResponse += ret;
-
-					// The command wasn't handled yet.
-					if (!onReceiveCommandOutput(fullResponse))
-						continue;
-
-					// This command was handled now. Start scouting for the next output.
-					fullResponse = "";
+				long delay = sendPendingCommands();
+
+				if (dataEvents) {
+					// Handle everything which arrived right away. Otherwise wait until
+					// the device sends something, a command is queued or the next
+					// status update is due.
+					if (in.available() > 0)
+						receive(in);
+					else if (!stop)
+						waitForWork(delay);
+				} else if (isWaitingForResponse()) {
+					// We're waiting on a response for that command. See if there's
+					// something here.
+					receive(in);
+				} else {
+					// Wait until the next status update is due or someone wants to
+					// send a command.
+					if (commandQueue.isEmpty() && !stop)
+						waitForWork(delay);
 				}
+			} while (!stop);
+		} catch (IOException e) {
+			if (!stop) {
+				System.err.printf("%s: Error while reading: %s%n", LOG_TAG, e.getMessage());
+			}
+		}
 
-				// See if someone wanted to send some command.
-				currentCommand = noneCommand;
-				boolean queueEmpty;
-				synchronized (commandQueue) {
-					if (!commandQueue.isEmpty()) {
-						currentCommand = commandQueue.removeFirst();
-					} else {
-						// Throw in a status update command every
-						// UPDATE_INTERVAL if the current command is None.
-						// TODO: Increase the interval if no websocket clients
-						// are connected.
-						for (Entry<CommandEnum, Instant> e : updateCommands.entrySet()) {
-							if (e.getValue() == null
-									|| Duration.between(e.getValue(), Instant.now()).toMillis() > UPDATE_INTERVAL)
-								addCommand(e.getKey());
-						}
-
-						// See if we have a command in there now and execute
-						// right away.
-						if (!commandQueue.isEmpty())
-							currentCommand = commandQueue.removeFirst();
-					}
-					
-					queueEmpty = commandQueue.isEmpty();
-				}
+		socketClosed();
+	}
+
+	private void waitForWork(long delay) {
+		if (delay == Long.MAX_VALUE)
+			LockSupport.park(this);
+		else
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(delay));
+	}
 
-				// Send the right command now.
-				String command = null;
-				if (currentCommand.cmd != null) {
-					command = getCommandString(currentCommand);
+	/**
+	 * Called by the connection when the device sent new data. Wakes up the thread
+	 * in {@link #processSocket(boolean)} to handle it. Can be called from any
+	 * thread.
+	 */
+	public void onDataAvailable() {
+		Runnable handler = wakeupHandler;
+		if (handler != null)
+			handler.run();
+	}
+
+	/**
+	 * Called by serial connections when the port sent everything we wrote. Wakes
+	 * up the thread to send the next commands. Can be called from any thread.
+	 */
+	public void onOutputEmpty() {
+		LineWrapper socket = this.socket;
+		if (socket != null)
+			socket.onOutputEmpty();
+		onDataAvailable();
+	}
+
+	/**
+	 * Called by the connection when the link to the device was established.
+	 */
+	public void socketOpened() {
+		dropInFlight();
+		consecutiveTimeouts = 0;
+		framer.clear();
+		onSocketConnected();
+	}
+
+	/**
+	 * Called by the connection when the link to the device is gone.
+	 */
+	public void socketClosed() {
+		// Reset command so we don't wait for a response anymore.
+		// We can't be sure the endpoint even got our request.
+		// Don't run outdated commands either after we get a connection
+		// again later.
+		commandQueue.clear(command -> finish(command, CommandStatus.Disconnected));
+		dropInFlight();
+
+		// Start fresh.
+		framer.clear();
+
+		onSocketDisconnected();
+	}
+
+	/**
+	 * Called by the connection when the channel to the device is readable.
+	 * 
+	 * @param channel
+	 *            The channel to read the data of the device from.
+	 * @throws IOException
+	 *             Thrown when reading failed or the channel reached its end.
+	 */
+	public void receive(ReadableByteChannel channel) throws IOException {
+		if (framer.read(channel) == -1)
+			throw new IOException("EOF");
+		handleFrames();
+	}
+
+	/**
+	 * Called by stream based connections to wait for data from the device.
+	 * 
+	 * @param in
+	 *            The stream to read the data of the device from.
+	 * @throws IOException
+	 *             Thrown when reading failed or the stream reached its end.
+	 */
+	public void receive(InputStream in) throws IOException {
+		// Nothing yet. Keep waiting.
+		if (framer.read(in) == -1)
+			throw new IOException("EOF");
+		handleFrames();
+	}
+
+	private void handleFrames() {
+		// Maybe we're not interested at all in what the server has to say.
+		if (ignoreResponses) {
+			framer.clear();
+			return;
+		}
+
+		CharSequence frame;
+		while ((frame = framer.nextFrame()) != null) {
+			if (pipelined)
+				handleResponse(frame);
+			else
+				handleCommandOutput(frame);
+		}
+
+		// Don't let a device which never sends the terminator fill up the buffer.
+		if (framer.isFull()) {
+			System.err.printf("%s: Discarding %d bytes without response terminator.%n", LOG_TAG, framer.pending());
+			framer.clear();
+		}
+	}
+
+	private void handleCommandOutput(CharSequence output) {
+		// Nobody asked.
+		if (!isWaitingForResponse())
+			return;
+
+		// Don't spam the commands that are sent every
+		// few seconds.
+		CommandContainer<CommandEnum> currentCommand = inFlight.getFirst();
+		if (!isRepeatingCommand(currentCommand.cmd))
+			System.out.printf("%s: Current command: %s. Received: %s%n", LOG_TAG, currentCommand.cmd.toString(),
+					output.toString().trim());
+
+		// The command wasn't handled yet.
+		long received = System.nanoTime();
+		responseError = null;
+		if (!onReceiveCommandOutput(output))
+			return;
+
+		// This command was handled now. Start scouting for the next output.
+		inFlight.removeFirst();
+		consecutiveTimeouts = 0;
+		recordResponseLatency(currentCommand, received, System.nanoTime());
+		finishAnswered(currentCommand);
+	}
+
+	/**
+	 * Complete the oldest command in flight which waits for the kind of response
+	 * we just received.
+	 */
+	private void handleResponse(CharSequence response) {
+		long received = System.nanoTime();
+		responseError = null;
+		CommandEnum responseType = onReceiveResponse(response);
+		long parsed = System.nanoTime();
+		if (responseType == null)
+			return;
+
+		CommandContainer<CommandEnum> answered = null;
+		for (CommandContainer<CommandEnum> command : inFlight) {
+			if (getResponseType(command.cmd) == responseType) {
+				answered = command;
+				break;
+			}
+		}
+		if (answered == null)
+			return;
+
+		// The device answers in order. Commands sent before this one which don't
+		// need an answer went through without an error then.
+		Iterator<CommandContainer<CommandEnum>> i = inFlight.iterator();
+		while (i.hasNext()) {
+			CommandContainer<CommandEnum> command = i.next();
+			if (command == answered) {
+				i.remove();
+				break;
+			}
+			if (command.ignoreResponse) {
+				i.remove();
+				finish(command, CommandStatus.Confirmed);
+			}
+		}
 
-					// Update the timestamp of when we last executed this command if
-					// it's one of the repeating ones.
-					if (isRepeatingCommand(currentCommand.cmd))
-						updateCommands.put(currentCommand.cmd, Instant.now());
+		consecutiveTimeouts = 0;
+		recordResponseLatency(answered, received, parsed);
+		finishAnswered(answered);
+		// Don't spam the commands that are sent every
+		// few seconds.
+		if (!isRepeatingCommand(answered.cmd))
+			System.out.printf("%s: Command: %s. Received: %s%n", LOG_TAG, answered.cmd.toString(),
+					response.toString().trim());
+	}
+
+	private void recordResponseLatency(CommandContainer<CommandEnum> command, long received, long parsed) {
+		roundTripHistograms.get(command.cmd).record(TimeUnit.NANOSECONDS.toMicros(received - command.sentTime));
+		parseHistograms.get(command.cmd).record(TimeUnit.NANOSECONDS.toMicros(parsed - received));
+	}
+
+	private void finishAnswered(CommandContainer<CommandEnum> command) {
+		if (responseError != null)
+			finish(command, CommandStatus.Failed, responseError);
+		else
+			finish(command, CommandStatus.Confirmed);
+	}
+
+	private void finish(CommandContainer<CommandEnum> command, CommandStatus status) {
+		finish(command, status, null);
+	}
+
+	private void finish(CommandContainer<CommandEnum> command, CommandStatus status, String error) {
+		if (command.callback == null)
+			return;
+
+		ICommandCallback callback = command.callback;
+		command.callback = null;
+		callback.onCommandFinished(status, error);
+	}
+
+	// We can't tell what happened to the commands we sent before.
+	private void dropInFlight() {
+		for (CommandContainer<CommandEnum> command : inFlight)
+			finish(command, CommandStatus.Disconnected);
+		inFlight.clear();
+		for (CommandContainer<CommandEnum> command : unanswered)
+			finish(command, CommandStatus.Disconnected);
+		unanswered.clear();
+	}
+
+	/**
+	 * Send queued commands and due status updates until we have to wait for a
+	 * response.
+	 * 
+	 * @return Time in milliseconds until this method has to be called again at the
+	 *         latest. {@link Long#MAX_VALUE} if there is nothing to do until new
+	 *         data arrives or a command is queued.
+	 * @throws IOException
+	 *             Thrown when writing to the device failed or the device didn't
+	 *             answer several commands in a row.
+	 */
+	public long sendPendingCommands() throws IOException {
+		// Make room for new commands if the device forgot to answer.
+		expireResponses();
+
+		while (inFlight.size() < maxInFlight && socket.isWritable()) {
+			// See if someone wanted to send some command.
+			// User commands go first.
+			if (commandQueue.isEmpty(Priority.Interactive)) {
+				// Throw in a status update command every
+				// polling interval if no user command is waiting.
+				int interval = pollingScheduler.getInterval();
+				long now = SocketReactor.now();
+				for (Entry<CommandEnum, Long> e : updateCommands.entrySet()) {
+					if ((e.getValue() == null || now - e.getValue() > interval) && !isInFlight(e.getKey()))
+						commandQueue.add(new CommandContainer<>(e.getKey()), Priority.Background);
 				}
+			}
 
-				// Send the command in the correct format if we want to send
-				// something.
-				if (command != null) {
-					socket.getOutputStream().write((command + "\r\n").getBytes(Charset.forName("ascii")));
-					// Don't spam the commands that are sent every 5 seconds.
-					if (!isRepeatingCommand(currentCommand.cmd))
-						System.out.printf("%s: Sent: %s%n", LOG_TAG, command);
+			CommandContainer<CommandEnum> currentCommand = commandQueue.poll();
+
+			// Nothing to do until the next status update is due.
+			if (currentCommand == null)
+				break;
+
+			// Don't run commands which waited too long. The user already gave up
+			// on them.
+			if (commandTtl > 0) {
+				long age = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - currentCommand.queuedTime);
+				if (age > commandTtl) {
+					System.err.printf("%s: Dropping %s after %dms in the queue.%n", LOG_TAG, currentCommand.cmd, age);
+					Metrics.increment(deviceName + ".commands_expired");
+					finish(currentCommand, CommandStatus.Expired);
+					continue;
 				}
+			}
 
-				// Wait a bit until checking if there is a new command.
-				// Check for the response right away if we expect one though.
-				if (!isWaitingForResponse() && queueEmpty)
-					Thread.sleep(500);
+			// Update the timestamp of when we last executed this command if
+			// it's one of the repeating ones. Commands which are answered with the
+			// same response refresh the status too, so skip the next poll.
+			CommandEnum responseType = getResponseType(currentCommand.cmd);
+			if (isRepeatingCommand(responseType) && (responseType == currentCommand.cmd || !currentCommand.ignoreResponse))
+				updateCommands.put(responseType, SocketReactor.now());
+
+			long now = System.nanoTime();
+			queueWaitHistograms.get(currentCommand.cmd)
+					.record(TimeUnit.NANOSECONDS.toMicros(now - currentCommand.queuedTime));
+
+			// Send the command in the correct format if we want to send
+			// something.
+			currentCommand.sentTime = now;
+			if (output.remaining() < encoder.getMaxLength())
+				flushOutput();
+			int start = output.position();
+			int value = getCommandValue(currentCommand);
+			if (!encoder.encode(currentCommand.cmd, value, output)) {
+				System.err.printf("%s: Can't send %s with value %d.%n", LOG_TAG, currentCommand.cmd, value);
+				finish(currentCommand, CommandStatus.Failed, "Invalid value " + value);
+				continue;
+			}
 
-			} while (!stop);
-		} catch (IOException | InterruptedException e) {
-			if (!stop) {
-				System.err.printf("%s: Error while reading: %s%n", LOG_TAG, e.getMessage());
+			// Don't spam the commands that are sent every 5 seconds.
+			if (!isRepeatingCommand(currentCommand.cmd))
+				System.out.printf("%s: Sent: %s%n", LOG_TAG,
+						new String(output.array(), start, output.position() - start - 2, StandardCharsets.US_ASCII));
+
+			// Remember to wait for the response. While pipelining, commands we
+			// don't need an answer to stay in line too, so an error or answer to
+			// them isn't taken for the response to a command sent after them.
+			if (!ignoreResponses && (!currentCommand.ignoreResponse || pipelined)) {
+				inFlight.add(currentCommand);
+			} else if (currentCommand.callback != null) {
+				unanswered.add(currentCommand);
+			}
+		}
+
+		// Send everything at once.
+		flushOutput();
+
+		// That's all we'll hear of the commands the device doesn't answer.
+		for (CommandContainer<CommandEnum> command : unanswered)
+			finish(command, CommandStatus.Sent);
+		unanswered.clear();
+
+		// Wake up for the next status update if there is room for another command.
+		// A serial port which is still sending tells us when it's done.
+		long delay = Long.MAX_VALUE;
+		if (!socket.isWritable())
+			delay = socket.getWriteDelay();
+		else if (inFlight.size() < maxInFlight)
+			delay = getTimeUntilNextUpdate();
+
+		// Check for the response right away if we expect one though.
+		if (inFlight.isEmpty() || responseTimeout == 0)
+			return delay;
+
+		// The oldest command times out first.
+		CommandContainer<CommandEnum> oldest = inFlight.getFirst();
+		long waiting = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.sentTime);
+		return Math.min(delay, Math.max(0, responseTimeout - waiting));
+	}
+
+	/**
+	 * Stop waiting for responses which didn't arrive in time. The commands are
+	 * sent again if their retry policy allows it.
+	 */
+	private void expireResponses() throws IOException {
+		if (responseTimeout == 0)
+			return;
+
+		while (!inFlight.isEmpty()) {
+			CommandContainer<CommandEnum> oldest = inFlight.getFirst();
+			long waiting = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.sentTime);
+			if (waiting < responseTimeout)
+				break;
+
+			inFlight.removeFirst();
+
+			// Not every command is answered if it went through. Nothing sent after
+			// it was answered either though, so it might have been lost.
+			if (oldest.ignoreResponse) {
+				if (!retry(oldest, waiting))
+					finish(oldest, CommandStatus.Sent);
+				continue;
 			}
 
-			// Reset command so we don't wait for a response anymore.
-			// We can't be sure the endpoint even got our request.
-			// Don't run outdated commands either after we get a connection
-			// again later.
-			synchronized (commandQueue) {
-				commandQueue.clear();
-				currentCommand = noneCommand;
+			Metrics.increment(deviceName + ".timeouts");
+
+			// Something is wrong with the connection if the device doesn't answer
+			// at all anymore.
+			consecutiveTimeouts++;
+			if (maxResponseTimeouts > 0 && consecutiveTimeouts >= maxResponseTimeouts) {
+				finish(oldest, CommandStatus.Timeout);
+				throw new IOException("No response to " + consecutiveTimeouts + " commands in a row. Last: "
+						+ oldest.cmd + " after " + waiting + "ms");
 			}
 
-			// Start fresh.
-			fullResponse = "";
+			if (retry(oldest, waiting))
+				continue;
+
+			System.err.printf("%s: No response to %s after %dms. Giving up.%n", LOG_TAG, oldest.cmd, waiting);
+			finish(oldest, CommandStatus.Timeout);
 		}
+	}
 
-		onSocketDisconnected();
+	/**
+	 * Queue a command which timed out again unless the user already queued a
+	 * newer command of that type.
+	 *
+	 * @return False if the command isn't retried.
+	 */
+	private boolean retry(CommandContainer<CommandEnum> command, long waiting) {
+		if (command.retries >= getMaxRetries(command.cmd))
+			return false;
+
+		command.retries++;
+		command.sentTime = 0;
+		if (!commandQueue.offer(command, Priority.Interactive))
+			return false;
+
+		System.err.printf("%s: No response to %s after %dms. Retrying (%d/%d).%n", LOG_TAG, command.cmd, waiting,
+				command.retries, getMaxRetries(command.cmd));
+		Metrics.increment(deviceName + ".retries");
+		return true;
+	}
+
+	private void flushOutput() throws IOException {
+		if (output.position() == 0)
+			return;
+
+		output.flip();
+		socket.write(output);
+		output.clear();
+	}
+
+	private long getTimeUntilNextUpdate() {
+		int interval = pollingScheduler.getInterval();
+		long delay = Long.MAX_VALUE;
+		long now = SocketReactor.now();
+		for (Entry<CommandEnum, Long> e : updateCommands.entrySet()) {
+			// Still waiting for the last answer.
+			if (isInFlight(e.getKey()))
+				continue;
+			if (e.getValue() == null)
+				return 0;
+			long elapsed = now - e.getValue();
+			delay = Math.min(delay, Math.max(0, interval - elapsed + 1));
+		}
+		return delay;
 	}
 
 	/**
@@ -190,52 +680,150 @@ public abstract class BaseCommands<ListenerInterface, CommandEnum> implements IW
 	 * @return True if we're waiting for a response on a command, false otherwise.
 	 */
 	private boolean isWaitingForResponse() {
-		return currentCommand.cmd != null && !currentCommand.ignoreResponse && !ignoreResponses;
+		return !inFlight.isEmpty();
+	}
+
+	// Checks if a command with the same response is waiting for it already.
+	private boolean isInFlight(CommandEnum cmd) {
+		for (CommandContainer<CommandEnum> command : inFlight) {
+			if (getResponseType(command.cmd) == cmd)
+				return true;
+		}
+		return false;
 	}
 
 	protected abstract void onSocketConnected();
 
 	protected abstract void onSocketDisconnected();
 
-	protected abstract boolean onReceiveCommandOutput(String input);
+	/**
+	 * Parse a single complete response while waiting for the current command.
+	 * 
+	 * @param input
+	 *            One response of the device including the terminator. Only valid
+	 *            during this call.
+	 * @return True if the response answered the current command.
+	 */
+	protected abstract boolean onReceiveCommandOutput(CharSequence input);
+
+	/**
+	 * The value a command is encoded with. Override to adapt it to the current
+	 * state of the device right before it's sent.
+	 */
+	protected int getCommandValue(CommandContainer<CommandEnum> cmd) {
+		return cmd.value;
+	}
 
-	protected abstract String getCommandString(CommandContainer<CommandEnum> cmd);
+	/**
+	 * Parse a single complete response when pipelining is enabled.
+	 * 
+	 * @param response
+	 *            One response of the device including the terminator. Only valid
+	 *            during this call.
+	 * @return The kind of response as returned by {@link #getResponseType}, or
+	 *         null if the response doesn't answer any command.
+	 * @see #enablePipelining(int)
+	 */
+	protected CommandEnum onReceiveResponse(CharSequence response) {
+		return null;
+	}
 
-	private boolean isRepeatingCommand(CommandEnum cmd) {
-		return updateCommands.containsKey(cmd);
+	/**
+	 * Map a command to the kind of response the device answers it with. Commands
+	 * which are answered with the same response share the same type, e.g. setting
+	 * and querying the volume.
+	 */
+	protected CommandEnum getResponseType(CommandEnum cmd) {
+		return cmd;
+	}
+
+	/**
+	 * Combine a queued command which wasn't sent yet with a new command of the
+	 * same type. The latest command wins by default. Called from any thread and
+	 * possibly more than once for the same pair, so it must not have side
+	 * effects.
+	 * 
+	 * @param pending
+	 *            The command waiting in the queue.
+	 * @param added
+	 *            The new command.
+	 * @return The command to queue instead of both.
+	 */
+	protected CommandContainer<CommandEnum> mergeCommands(CommandContainer<CommandEnum> pending,
+			CommandContainer<CommandEnum> added) {
+		return added;
 	}
 
-	protected String read() throws IOException {
-		InputStream in = socket.getInputStream();
-		byte[] buffer = new byte[1024];
+	// Inform the callbacks of both commands when the merged command finished.
+	// Must not change the commands, see mergeCommands.
+	private CommandContainer<CommandEnum> mergeCallbacks(CommandContainer<CommandEnum> pending,
+			CommandContainer<CommandEnum> added) {
+		CommandContainer<CommandEnum> merged = mergeCommands(pending, added);
+		ICommandCallback callback = ICommandCallback.combine(pending.callback, added.callback);
+		if (merged.callback == callback)
+			return merged;
+
+		CommandContainer<CommandEnum> copy = new CommandContainer<>(merged.cmd, merged.value, merged.ignoreResponse);
+		copy.queuedTime = merged.queuedTime;
+		copy.callback = callback;
+		return copy;
+	}
 
-		int ret_read = in.read(buffer);
-		if (ret_read == -1)
-			throw new IOException("EOF");
+	/**
+	 * How often to send a command again if the device didn't answer it in time.
+	 * Only commands which can safely be applied twice should be retried. Status
+	 * polls are sent again on the next update anyway. Commands the device doesn't
+	 * answer are retried if no command sent after them was answered in time
+	 * either.
+	 */
+	protected int getMaxRetries(CommandEnum cmd) {
+		return 0;
+	}
 
-		if (ret_read == 0)
-			return null;
+	private boolean isRepeatingCommand(CommandEnum cmd) {
+		return updateCommands.containsKey(cmd);
+	}
 
-		return new String(buffer, 0, ret_read);
+	/**
+	 * @return The commands which were sent and wait for a response, oldest first.
+	 *         Only valid on the thread processing the connection.
+	 */
+	protected Iterable<CommandContainer<CommandEnum>> getCommandsInFlight() {
+		return Collections.unmodifiableList(inFlight);
 	}
 
 	protected CommandContainer<CommandEnum> getCurrentCommand() {
-		return currentCommand;
+		if (inFlight.isEmpty())
+			return noneCommand;
+		return inFlight.getFirst();
 	}
 
-	protected void addCommand(CommandEnum cmd, int value, UseResponse response) {
-		synchronized (commandQueue) {
-			// Make sure this is the only command of that type in the queue.
-			Iterator<CommandContainer<CommandEnum>> i = commandQueue.iterator();
-			while (i.hasNext()) {
-				CommandContainer<CommandEnum> command = i.next();
-				if (command.cmd == cmd)
-					i.remove();
-			}
+	/**
+	 * Queue a command triggered by a user.
+	 * 
+	 * @param callback
+	 *            Informed when the command finished. May be null.
+	 */
+	protected void addCommand(CommandEnum cmd, int value, UseResponse response, ICommandCallback callback) {
+		CommandContainer<CommandEnum> command = new CommandContainer<>(cmd, value,
+				response == UseResponse.IgnoreResponse);
+		command.callback = callback;
+		if (callback != null)
+			callback.onCommandQueued();
+
+		// Make sure this is the only command of that type in the queue.
+		commandQueue.add(command, Priority.Interactive);
+
+		// Watch the device closely while it's applying the change.
+		pollingScheduler.startBurst();
+
+		// Let the connection know there is something to send.
+		if (wakeupHandler != null)
+			wakeupHandler.run();
+	}
 
-			// Add the new command now.
-			commandQueue.add(new CommandContainer<>(cmd, value, response == UseResponse.IgnoreResponse));
-		}
+	protected void addCommand(CommandEnum cmd, int value, UseResponse response) {
+		addCommand(cmd, value, response, null);
 	}
 
 	protected void addCommand(CommandEnum cmd, int value) {
@@ -253,4 +841,39 @@ public abstract class BaseCommands<ListenerInterface, CommandEnum> implements IW
 	protected void ignoreResponses() {
 		ignoreResponses = true;
 	}
+
+	/**
+	 * Send up to window commands without waiting for the responses of the
+	 * previous ones. Responses are matched to the commands in flight through
+	 * {@link #onReceiveResponse(CharSequence)} and {@link #getResponseType}
+	 * instead of {@link #onReceiveCommandOutput(CharSequence)}. Only works if the device answers
+	 * in order and every response tells which value it's about.
+	 * 
+	 * Commands added with {@link UseResponse#IgnoreResponse} take a place in the
+	 * window too. They count as confirmed once a command sent after them was
+	 * answered, so give them a response type of their own.
+	 * 
+	 * @param window
+	 *            Maximum number of commands waiting for a response.
+	 */
+	protected void enablePipelining(int window) {
+		maxInFlight = Math.max(1, window);
+		pipelined = true;
+	}
+
+	/**
+	 * Call while parsing a response if the device answered the command with an
+	 * error. The callback of the command is told about it.
+	 */
+	protected void reportResponseError(String error) {
+		responseError = error;
+	}
+
+	/**
+	 * Set the character which ends every response of the device. Defaults to a
+	 * newline.
+	 */
+	protected void setResponseTerminator(char terminator) {
+		responseTerminator = terminator;
+	}
 }
@@ -2,24 +2,30 @@ package de.schunterkino.kinoapi.sockets;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.TooManyListenersException;
+
+import de.schunterkino.kinoapi.App;
 
 import purejavacomm.CommPort;
 import purejavacomm.CommPortIdentifier;
 import purejavacomm.NoSuchPortException;
 import purejavacomm.PortInUseException;
 import purejavacomm.SerialPort;
+import purejavacomm.SerialPortEvent;
 import purejavacomm.UnsupportedCommOperationException;
 
-public class BaseSerialPortClient<T extends BaseCommands<S, V>, S, V> implements Runnable {
+public class BaseSerialPortClient<T extends BaseCommands<S, V>, S, V extends Enum<V>> implements Runnable {
 	private String portName;
 	private String log_tag;
 	private SerialPort serial;
 	private T commands;
 	private boolean stop;
 	private boolean alreadyPrintedError;
+	private ReconnectPolicy reconnectPolicy;
 
-	// Wait X seconds after a connection problem until trying again.
-	private static int RECONNECT_TIME = 10;
+	// Port settings of the device.
+	private int baudRate;
+	private int flowControl;
 
 	public BaseSerialPortClient(String portName, Class<T> typeArgumentClass) {
 		this.portName = portName;
@@ -32,14 +38,33 @@ public class BaseSerialPortClient<T extends BaseCommands<S, V>, S, V> implements
 		}
 		this.stop = false;
 		this.alreadyPrintedError = false;
+		this.reconnectPolicy = new ReconnectPolicy(commands.getDeviceName());
+		this.baudRate = App.getConfigurationInteger(commands.getDeviceName() + "_baud_rate");
+		this.flowControl = getFlowControlMode(App.getConfigurationString(commands.getDeviceName() + "_flow_control"));
+	}
+
+	private int getFlowControlMode(String name) {
+		switch (name) {
+		case "none":
+			return SerialPort.FLOWCONTROL_NONE;
+		case "rtscts":
+			return SerialPort.FLOWCONTROL_RTSCTS_IN | SerialPort.FLOWCONTROL_RTSCTS_OUT;
+		case "xonxoff":
+			return SerialPort.FLOWCONTROL_XONXOFF_IN | SerialPort.FLOWCONTROL_XONXOFF_OUT;
+		default:
+			System.err.printf("%s: Unknown flow control \"%s\". Using none.%n", log_tag, name);
+			return SerialPort.FLOWCONTROL_NONE;
+		}
 	}
 
 	@Override
 	public void run() {
 		// Connect! And keep trying to connect too.
 		while (!stop) {
+			boolean portAvailable = false;
 			try {
 				CommPortIdentifier portIdentifier = CommPortIdentifier.getPortIdentifier(portName);
+				portAvailable = true;
 				if (portIdentifier.isCurrentlyOwned())
 					throw new IOException("Port " + portName + " is currently in use");
 
@@ -52,22 +77,24 @@ public class BaseSerialPortClient<T extends BaseCommands<S, V>, S, V> implements
 				}
 
 				serial = (SerialPort) commPort;
-				serial.setSerialPortParams(115200, SerialPort.DATABITS_8, SerialPort.STOPBITS_1,
+				serial.setSerialPortParams(baudRate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1,
 						SerialPort.PARITY_NONE);
+				serial.setFlowControlMode(flowControl);
 				serial.enableReceiveTimeout(timeout);
-				// serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_RTSCTS_IN
-				// |
-				// SerialPort.FLOWCONTROL_RTSCTS_OUT);
-
-				System.out.printf("%s: Opened serial connection on %s.%n", log_tag, portName);
 
 				// Start to handle messages.
 				commands.setSerialPort(serial);
 
+				// Get notified when data arrives instead of waiting in a read.
+				boolean dataEvents = listenForData();
+
+				System.out.printf("%s: Opened serial connection on %s.%n", log_tag, portName);
+				reconnectPolicy.onConnected();
+
 				// Block until the socket to is done.
 				// This only returns if there is an issue with the
 				// socket or we requested it to stop.
-				commands.processSocket();
+				commands.processSocket(dataEvents);
 
 				// Print a reconnect error message next time again now that
 				// we connected again.
@@ -77,8 +104,8 @@ public class BaseSerialPortClient<T extends BaseCommands<S, V>, S, V> implements
 				// The readerThread will die on its own if it already
 				// started.
 				if (!stop && !alreadyPrintedError) {
-					System.err.printf("%s: Error in connection. Trying to reconnect every %d seconds. Exception: %s%n",
-							log_tag, RECONNECT_TIME, e.getMessage());
+					System.err.printf("%s: Error in connection. Trying to reconnect. Exception: %s%n", log_tag,
+							e.getMessage());
 					// Don't print the error again if the server stays down.
 					alreadyPrintedError = true;
 				}
@@ -93,9 +120,9 @@ public class BaseSerialPortClient<T extends BaseCommands<S, V>, S, V> implements
 			if (stop)
 				break;
 
-			// Wait X seconds until we try to connect again.
+			// Wait a bit until we try to connect again.
 			try {
-				Thread.sleep(RECONNECT_TIME * 1000);
+				waitForReconnect(reconnectPolicy.onFailure(false), portAvailable);
 			} catch (InterruptedException e) {
 				if (!stop)
 					e.printStackTrace();
@@ -103,6 +130,59 @@ public class BaseSerialPortClient<T extends BaseCommands<S, V>, S, V> implements
 		}
 	}
 
+	/**
+	 * Let the port wake up the device thread as soon as data arrived or it sent
+	 * everything we wrote.
+	 * 
+	 * @return True if the port sends data available events.
+	 */
+	private boolean listenForData() {
+		try {
+			serial.addEventListener(event -> {
+				switch (event.getEventType()) {
+				case SerialPortEvent.DATA_AVAILABLE:
+					commands.onDataAvailable();
+					break;
+				case SerialPortEvent.OUTPUT_BUFFER_EMPTY:
+					commands.onOutputEmpty();
+					break;
+				}
+			});
+			serial.notifyOnDataAvailable(true);
+			serial.notifyOnOutputEmpty(true);
+			commands.socket.enableWritePacing(baudRate);
+			return true;
+		} catch (TooManyListenersException e) {
+			System.err.printf("%s: Can't listen for serial port events. Reading with timeouts instead.%n", log_tag);
+			return false;
+		}
+	}
+
+	/**
+	 * Sleep until the next connection attempt is due. Stop waiting early if the
+	 * serial port was missing and shows up again, e.g. because the USB adapter
+	 * was plugged back in.
+	 */
+	private void waitForReconnect(long delay, boolean portAvailable) throws InterruptedException {
+		long end = SocketReactor.now() + delay;
+		long remaining;
+		while (!stop && (remaining = end - SocketReactor.now()) > 0) {
+			Thread.sleep(Math.min(remaining, reconnectPolicy.getProbeInterval()));
+
+			if (!portAvailable && isPortAvailable())
+				return;
+		}
+	}
+
+	private boolean isPortAvailable() {
+		try {
+			CommPortIdentifier.getPortIdentifier(portName);
+			return true;
+		} catch (NoSuchPortException e) {
+			return false;
+		}
+	}
+
 	public boolean isConnected() {
 		return serial != null;
 	}
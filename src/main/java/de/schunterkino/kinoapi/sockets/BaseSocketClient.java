@@ -2,100 +2,231 @@ package de.schunterkino.kinoapi.sockets;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking TCP connection to a device. The connection is driven by the
+ * {@link SocketReactor} and keeps reconnecting until it's stopped.
+ */
+public class BaseSocketClient<T extends BaseCommands<S, V>, S, V extends Enum<V>> implements IReactorConnection {
+
+	private enum State {
+		Disconnected, Connecting, Connected
+	}
 
-public class BaseSocketClient<T extends BaseCommands<S, V>, S, V> implements Runnable {
 	private String ip;
 	private int port;
 	private String log_tag;
 	private SocketAddress socketAddress;
-	private Socket socket;
+	private SocketReactor reactor;
+	private SocketChannel channel;
+	private SelectionKey key;
 	private T commands;
-	private boolean stop;
+	private volatile State state;
+	private volatile boolean stop;
 	private boolean alreadyPrintedError;
+	private ReconnectPolicy reconnectPolicy;
+
+	// When to process this connection again.
+	private long deadline;
 
-	// Wait X seconds after a connection problem until trying again.
-	private static int RECONNECT_TIME = 10;
+	// Give up connecting after X milliseconds.
+	private static int CONNECT_TIMEOUT = 5000;
 
-	public BaseSocketClient(String ip, int port, Class<T> typeArgumentClass) {
+	public BaseSocketClient(SocketReactor reactor, String ip, int port, Class<T> typeArgumentClass) {
 		this.ip = ip;
 		this.port = port;
 		this.log_tag = typeArgumentClass.getSimpleName();
-		this.socket = null;
+		this.reactor = reactor;
+		this.channel = null;
+		this.key = null;
 		try {
 			this.socketAddress = new InetSocketAddress(InetAddress.getByName(ip), port);
 			this.commands = typeArgumentClass.getDeclaredConstructor().newInstance();
 		} catch (InstantiationException | IllegalAccessException | UnknownHostException | NoSuchMethodException | InvocationTargetException e) {
 			e.printStackTrace();
 		}
+		this.state = State.Disconnected;
 		this.stop = false;
 		this.alreadyPrintedError = false;
+		this.deadline = 0;
+		this.reconnectPolicy = new ReconnectPolicy(commands.getDeviceName());
+
+		// Send queued commands right away.
+		commands.setWakeupHandler(() -> reactor.wakeup(this));
+
+		// Connect! And keep trying to connect too.
+		reactor.register(this);
 	}
 
 	@Override
-	public void run() {
-		// Connect! And keep trying to connect too.
-		while (!stop) {
-			try {
-				socket = new Socket();
-				socket.connect(socketAddress, 5000);
-				socket.setKeepAlive(true);
-				socket.setSoTimeout(5000);
+	public void process() {
+		if (stop) {
+			close();
+			deadline = Long.MAX_VALUE;
+			return;
+		}
+
+		try {
+			switch (state) {
+			case Disconnected:
+				if (SocketReactor.now() >= deadline)
+					connect();
+				break;
+			case Connecting:
+				if (SocketReactor.now() >= deadline)
+					throw new SocketTimeoutException("Connect timed out");
+				break;
+			case Connected:
+				sendPendingCommands();
+				break;
+			}
+		} catch (IOException e) {
+			onError(e);
+		} catch (RuntimeException e) {
+			onError(e);
+		}
+	}
 
-				System.out.printf("%s: Connected to %s:%d.%n", log_tag, ip, port);
+	@Override
+	public void onSelected(SelectionKey key) {
+		try {
+			if (key.isConnectable() && channel.finishConnect())
+				onConnected();
 
-				// Start to handle socket messages.
-				commands.setSocket(socket);
+			if (key.isReadable())
+				commands.receive(channel);
 
-				// Block until the socket to is done.
-				// This only returns if there is an issue with the
-				// socket or we requested it to stop.
-				commands.processSocket();
+			if (key.isWritable())
+				commands.socket.flush();
+
+			// See if the response allows us to send the next command.
+			if (state == State.Connected)
+				sendPendingCommands();
+		} catch (IOException e) {
+			onError(e);
+		} catch (RuntimeException e) {
+			onError(e);
+		}
+	}
 
-				// Print a reconnect error message next time again now that
-				// we connected again.
-				alreadyPrintedError = false;
+	@Override
+	public long getDeadline() {
+		return deadline;
+	}
 
-			} catch (IOException e) {
-				// The readerThread will die on its own if it already
-				// started.
-				if (!stop && !alreadyPrintedError) {
-					System.err.printf("%s: Error in connection. Trying to reconnect every %d seconds. Exception: %s%n",
-							log_tag, RECONNECT_TIME, e.getMessage());
-					// Don't print the error again if the server stays down.
-					alreadyPrintedError = true;
-				}
-			}
+	private void connect() throws IOException {
+		channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+
+		state = State.Connecting;
+		if (channel.connect(socketAddress)) {
+			key = reactor.registerChannel(channel, 0, this);
+			onConnected();
+		} else {
+			key = reactor.registerChannel(channel, SelectionKey.OP_CONNECT, this);
+			deadline = SocketReactor.now() + CONNECT_TIMEOUT;
+		}
+	}
 
-			// Properly shutdown the client connection.
+	private void onConnected() throws IOException {
+		state = State.Connected;
+		System.out.printf("%s: Connected to %s:%d.%n", log_tag, ip, port);
+		reconnectPolicy.onConnected();
+
+		// Print a reconnect error message next time again now that
+		// we connected again.
+		alreadyPrintedError = false;
+
+		// Start to handle socket messages.
+		commands.setSocketChannel(channel);
+		commands.socketOpened();
+		sendPendingCommands();
+	}
+
+	private void sendPendingCommands() throws IOException {
+		long delay = commands.sendPendingCommands();
+		deadline = delay == Long.MAX_VALUE ? Long.MAX_VALUE : SocketReactor.now() + delay;
+
+		// Only wait until the socket is writable if it didn't take all of our data.
+		int ops = SelectionKey.OP_READ;
+		if (commands.socket.hasPendingOutput())
+			ops |= SelectionKey.OP_WRITE;
+		key.interestOps(ops);
+	}
+
+	// A bug while handling one device must not stop the reactor thread which
+	// drives the other devices too. Start over with a fresh connection.
+	@Override
+	public void onError(Exception e) {
+		if (e instanceof IOException) {
+			onError((IOException) e);
+			return;
+		}
+
+		System.err.printf("%s: Unexpected error. Reconnecting.%n", log_tag);
+		e.printStackTrace();
+		reconnect(false);
+	}
+
+	private void onError(IOException e) {
+		if (state == State.Connected) {
+			if (!stop)
+				System.err.printf("%s: Error while reading: %s%n", log_tag, e.getMessage());
+		} else if (!stop && !alreadyPrintedError) {
+			System.err.printf("%s: Error in connection. Trying to reconnect. Exception: %s%n", log_tag,
+					e.getMessage());
+			// Don't print the error again if the server stays down.
+			alreadyPrintedError = true;
+		}
+
+		reconnect(e instanceof ConnectException);
+	}
+
+	private void reconnect(boolean refused) {
+		close();
+
+		// Wait a bit until we try to connect again. The connect itself is our
+		// probe: If the device actively refused it, its network is up again and
+		// it's probably just booting.
+		deadline = SocketReactor.now() + reconnectPolicy.onFailure(refused);
+	}
+
+	@Override
+	public void close() {
+		if (key != null) {
+			key.cancel();
+			key = null;
+		}
+
+		// Properly shutdown the client connection.
+		if (channel != null) {
 			try {
-				if (isConnected()) {
-					socket.close();
-					System.out.printf("%s: Connection closed.%n", log_tag);
-				}
+				channel.close();
 			} catch (IOException e) {
 				System.err.printf("%s: Error while closing connection: %s%n", log_tag, e.getMessage());
 			}
+			channel = null;
+		}
 
-			if (stop)
-				break;
-
-			// Wait X seconds until we try to connect again.
-			try {
-				Thread.sleep(RECONNECT_TIME * 1000);
-			} catch (InterruptedException e) {
-				if (!stop)
-					e.printStackTrace();
-			}
+		if (state == State.Connected) {
+			commands.socketClosed();
+			System.out.printf("%s: Connection closed.%n", log_tag);
 		}
+		state = State.Disconnected;
 	}
 
 	public boolean isConnected() {
-		return socket != null && socket.isConnected() && !socket.isClosed();
+		return state == State.Connected;
 	}
 
 	public T getCommands() {
@@ -109,11 +240,8 @@ public class BaseSocketClient<T extends BaseCommands<S, V>, S, V> implements Run
 		stop = true;
 		if (commands != null)
 			commands.stop();
-		try {
-			if (socket != null)
-				socket.close();
-		} catch (IOException e) {
-			// Who cares.
-		}
+
+		// Close the socket on the reactor thread.
+		reactor.wakeup(this);
 	}
 }
@@ -4,12 +4,24 @@ public class CommandContainer<T> {
 	public T cmd;
 	public int value;
 	public boolean ignoreResponse;
+	// When the command was queued to be sent in System.nanoTime().
+	public long queuedTime;
+	// When the command was written to the device in System.nanoTime().
+	public long sentTime;
+	// How often the command was sent again after the device didn't answer.
+	public int retries;
+	// Informed when the command finished. Null if nobody is interested.
+	public ICommandCallback callback;
 
 	public CommandContainer(T cmd, int value, boolean ignoreResponse)
 	{
 		this.cmd = cmd;
 		this.value = value;
 		this.ignoreResponse = ignoreResponse;
+		this.queuedTime = System.nanoTime();
+		this.sentTime = 0;
+		this.retries = 0;
+		this.callback = null;
 	}
 	
 	public CommandContainer(T cmd, int value) {
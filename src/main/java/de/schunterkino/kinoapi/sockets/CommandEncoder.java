@@ -0,0 +1,147 @@
+package de.schunterkino.kinoapi.sockets;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * Turns commands into the bytes sent to the device. Every command is compiled
+ * into a byte template once, so encoding only copies the template and writes
+ * the digits of the value. Nothing is allocated while sending.
+ */
+public class CommandEncoder<CommandEnum extends Enum<CommandEnum>> {
+
+	// Every command ends with a line break.
+	private static final byte[] LINE_END = { '\r', '\n' };
+
+	// "-2147483648"
+	private static final int MAX_DIGITS = 11;
+
+	private EnumMap<CommandEnum, Template> templates;
+
+	// Longest encoded command including the line end.
+	private int maxLength;
+
+	public CommandEncoder(Class<CommandEnum> commandClass) {
+		this.templates = new EnumMap<>(commandClass);
+		this.maxLength = LINE_END.length;
+	}
+
+	/**
+	 * Add a command with a fixed text or a number.
+	 *
+	 * @param template
+	 *            The command as sent to the device. A "%d" is replaced with the
+	 *            value of the command.
+	 */
+	public void add(CommandEnum cmd, String template) {
+		add(cmd, template, "%d", null);
+	}
+
+	/**
+	 * Add a command which selects one of several named options.
+	 *
+	 * @param template
+	 *            The command as sent to the device. The "%s" is replaced with the
+	 *            name at the index of the command's value.
+	 * @param names
+	 *            Names of the options.
+	 */
+	public void add(CommandEnum cmd, String template, List<String> names) {
+		add(cmd, template, "%s", names);
+	}
+
+	private void add(CommandEnum cmd, String template, String placeholder, List<String> names) {
+		Template t = new Template();
+		int index = template.indexOf(placeholder);
+		if (index == -1) {
+			t.prefix = ascii(template);
+			t.suffix = null;
+		} else {
+			t.prefix = ascii(template.substring(0, index));
+			t.suffix = ascii(template.substring(index + placeholder.length()));
+		}
+
+		int valueLength = 0;
+		if (names != null) {
+			t.names = new byte[names.size()][];
+			for (int i = 0; i < names.size(); i++) {
+				t.names[i] = ascii(names.get(i));
+				valueLength = Math.max(valueLength, t.names[i].length);
+			}
+		} else if (t.suffix != null) {
+			valueLength = MAX_DIGITS;
+		}
+
+		templates.put(cmd, t);
+		maxLength = Math.max(maxLength, t.prefix.length + valueLength
+				+ (t.suffix != null ? t.suffix.length : 0) + LINE_END.length);
+	}
+
+	/**
+	 * @return Maximum number of bytes {@link #encode} writes for a single command.
+	 */
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	/**
+	 * Append the command including the line end to the buffer.
+	 *
+	 * @param cmd
+	 *            The command to send.
+	 * @param value
+	 *            The number or the index of the option the command is sent with.
+	 * @param out
+	 *            Buffer with at least {@link #getMaxLength()} bytes remaining.
+	 * @return False if the command isn't sent to the device at all or the value
+	 *         isn't the index of one of its options. Nothing is written then.
+	 */
+	public boolean encode(CommandEnum cmd, int value, ByteBuffer out) {
+		Template t = templates.get(cmd);
+		if (t == null)
+			return false;
+		if (t.suffix != null && t.names != null && (value < 0 || value >= t.names.length))
+			return false;
+
+		out.put(t.prefix);
+		if (t.suffix != null) {
+			if (t.names != null)
+				out.put(t.names[value]);
+			else
+				putDigits(value, out);
+			out.put(t.suffix);
+		}
+		out.put(LINE_END);
+		return true;
+	}
+
+	private static void putDigits(int value, ByteBuffer out) {
+		long v = value;
+		if (v < 0) {
+			out.put((byte) '-');
+			v = -v;
+		}
+
+		long divisor = 1;
+		while (divisor * 10 <= v)
+			divisor *= 10;
+
+		for (; divisor > 0; divisor /= 10)
+			out.put((byte) ('0' + (v / divisor) % 10));
+	}
+
+	private static byte[] ascii(String text) {
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static class Template {
+		// Text before the value or the whole command if it has no value.
+		byte[] prefix;
+		// Text after the value. Null if the command has no value.
+		byte[] suffix;
+		// Encoded names of the options. Null if the value is written as a number.
+		byte[][] names;
+	}
+}
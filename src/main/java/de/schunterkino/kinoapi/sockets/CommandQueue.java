@@ -0,0 +1,205 @@
+package de.schunterkino.kinoapi.sockets;
+
+import java.util.EnumMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+
+/**
+ * Queue of commands waiting to be sent to a device. Commands can be added from
+ * any thread without locking, but only the device thread may take them out.
+ *
+ * There is one lane for commands triggered by users and one for the periodic
+ * status updates, so user actions never wait behind a pending status poll.
+ * Every lane holds at most one command of each type. Adding a command merges it
+ * with the pending one of the same type in constant time and moves it to the
+ * end of the lane.
+ */
+public class CommandQueue<CommandEnum extends Enum<CommandEnum>> {
+
+	public enum Priority {
+		Interactive, Background
+	}
+
+	private Lane interactive;
+	private Lane background;
+
+	// Combines a pending command with a new one of the same type.
+	private BinaryOperator<CommandContainer<CommandEnum>> merger;
+
+	/**
+	 * @param merger
+	 *            Combines the pending command (first argument) with a newly added
+	 *            command of the same type (second argument). Must not have side
+	 *            effects, because it might be called more than once when several
+	 *            threads add commands at the same time.
+	 */
+	public CommandQueue(Class<CommandEnum> commandClass, BinaryOperator<CommandContainer<CommandEnum>> merger) {
+		this.merger = merger;
+		this.interactive = new Lane(commandClass);
+		this.background = new Lane(commandClass);
+	}
+
+	/**
+	 * Queue a command. Merges it with a pending command of the same type in the
+	 * lane. Can be called from any thread.
+	 */
+	public void add(CommandContainer<CommandEnum> command, Priority priority) {
+		if (priority == Priority.Interactive)
+			interactive.add(command);
+		else
+			background.add(command);
+	}
+
+	/**
+	 * Queue a command unless there is a pending command of the same type in the
+	 * lane already. Can be called from any thread.
+	 *
+	 * @return True if the command was queued.
+	 */
+	public boolean offer(CommandContainer<CommandEnum> command, Priority priority) {
+		if (priority == Priority.Interactive)
+			return interactive.offer(command);
+		return background.offer(command);
+	}
+
+	/**
+	 * Take the next command. Interactive commands go first. Must only be called
+	 * from the device thread.
+	 *
+	 * @return The next command or null if the queue is empty.
+	 */
+	public CommandContainer<CommandEnum> poll() {
+		CommandContainer<CommandEnum> command = interactive.poll();
+		if (command != null) {
+			// A pending status poll of the same type is redundant now.
+			background.remove(command.cmd);
+			return command;
+		}
+		return background.poll();
+	}
+
+	public boolean isEmpty() {
+		return interactive.isEmpty() && background.isEmpty();
+	}
+
+	public boolean isEmpty(Priority priority) {
+		if (priority == Priority.Interactive)
+			return interactive.isEmpty();
+		return background.isEmpty();
+	}
+
+	/**
+	 * Drop all pending commands.
+	 *
+	 * @param dropped
+	 *            Receives every dropped command.
+	 */
+	public void clear(Consumer<CommandContainer<CommandEnum>> dropped) {
+		interactive.clear(dropped);
+		background.clear(dropped);
+	}
+
+	// A queued command. A merged command gets a new entry at the end of the lane
+	// and the old entry is removed.
+	private class Entry {
+		final CommandContainer<CommandEnum> command;
+
+		Entry(CommandContainer<CommandEnum> command) {
+			this.command = command;
+		}
+	}
+
+	private class Lane {
+		// Entries in the order they were queued. Replaced entries are removed
+		// right away, so it holds at most one entry per command type, apart from
+		// entries which were just taken by the device thread.
+		private ConcurrentLinkedQueue<Entry> order;
+
+		// The current entry of each type. Entries in the order queue which aren't
+		// in their slot anymore are skipped.
+		private EnumMap<CommandEnum, AtomicReference<Entry>> slots;
+
+		Lane(Class<CommandEnum> commandClass) {
+			this.order = new ConcurrentLinkedQueue<>();
+			this.slots = new EnumMap<>(commandClass);
+			for (CommandEnum cmd : commandClass.getEnumConstants())
+				slots.put(cmd, new AtomicReference<>());
+		}
+
+		void add(CommandContainer<CommandEnum> command) {
+			// Merge with the pending command of that type and move it to the end
+			// of the lane, so it's sent after the commands queued before it.
+			AtomicReference<Entry> slot = slots.get(command.cmd);
+			Entry pending, entry;
+			do {
+				pending = slot.get();
+				entry = new Entry(pending == null ? command : merger.apply(pending.command, command));
+			} while (!slot.compareAndSet(pending, entry));
+			if (pending != null)
+				order.remove(pending);
+			append(entry);
+		}
+
+		boolean offer(CommandContainer<CommandEnum> command) {
+			// Don't replace a newer command of the same type.
+			Entry entry = new Entry(command);
+			if (!slots.get(command.cmd).compareAndSet(null, entry))
+				return false;
+			append(entry);
+			return true;
+		}
+
+		CommandContainer<CommandEnum> poll() {
+			Entry entry;
+			while ((entry = order.poll()) != null) {
+				if (take(entry))
+					return entry.command;
+			}
+			return null;
+		}
+
+		void remove(CommandEnum cmd) {
+			Entry entry = slots.get(cmd).getAndSet(null);
+			if (entry != null)
+				order.remove(entry);
+		}
+
+		boolean isEmpty() {
+			// Drop stale entries at the head, so they don't count as pending.
+			Entry entry;
+			while ((entry = order.peek()) != null) {
+				if (isCurrent(entry))
+					return false;
+				order.remove(entry);
+			}
+			return true;
+		}
+
+		void clear(Consumer<CommandContainer<CommandEnum>> dropped) {
+			Entry entry;
+			while ((entry = order.poll()) != null) {
+				if (take(entry))
+					dropped.accept(entry.command);
+			}
+		}
+
+		private void append(Entry entry) {
+			order.add(entry);
+			// Someone replaced the entry before it was in the queue and couldn't
+			// remove it.
+			if (!isCurrent(entry))
+				order.remove(entry);
+		}
+
+		// Empty the slot if the entry is still current.
+		private boolean take(Entry entry) {
+			return slots.get(entry.command.cmd).compareAndSet(entry, null);
+		}
+
+		private boolean isCurrent(Entry entry) {
+			return slots.get(entry.command.cmd).get() == entry;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package de.schunterkino.kinoapi.sockets;
+
+/**
+ * What happened to a command sent to a device.
+ */
+public enum CommandStatus {
+	/**
+	 * The device answered the command.
+	 */
+	Confirmed("confirmed"),
+	/**
+	 * The command was written to a device which doesn't answer.
+	 */
+	Sent("sent"),
+	/**
+	 * The device answered with an error.
+	 */
+	Failed("failed"),
+	/**
+	 * The device didn't answer in time.
+	 */
+	Timeout("timeout"),
+	/**
+	 * The command waited too long in the queue and was dropped.
+	 */
+	Expired("expired"),
+	/**
+	 * The connection to the device was lost before the command finished.
+	 */
+	Disconnected("disconnected");
+
+	private String name;
+
+	private CommandStatus(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+}
@@ -0,0 +1,48 @@
+package de.schunterkino.kinoapi.sockets;
+
+/**
+ * Informed about the progress of a command on its way to the device.
+ */
+public interface ICommandCallback {
+
+	/**
+	 * Called when the command was added to the queue.
+	 */
+	void onCommandQueued();
+
+	/**
+	 * Called on the device thread when it's known what happened to the command.
+	 * Retries of the command don't count, so this is called only once.
+	 *
+	 * @param status
+	 *            What happened to the command.
+	 * @param error
+	 *            The error the device answered with. Null unless the status is
+	 *            {@link CommandStatus#Failed}.
+	 */
+	void onCommandFinished(CommandStatus status, String error);
+
+	/**
+	 * @return A callback which informs both callbacks. Either one may be null.
+	 */
+	static ICommandCallback combine(ICommandCallback first, ICommandCallback second) {
+		if (first == null)
+			return second;
+		if (second == null)
+			return first;
+
+		return new ICommandCallback() {
+			@Override
+			public void onCommandQueued() {
+				first.onCommandQueued();
+				second.onCommandQueued();
+			}
+
+			@Override
+			public void onCommandFinished(CommandStatus status, String error) {
+				first.onCommandFinished(status, error);
+				second.onCommandFinished(status, error);
+			}
+		};
+	}
+}
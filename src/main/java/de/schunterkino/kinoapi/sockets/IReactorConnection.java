@@ -0,0 +1,50 @@
+package de.schunterkino.kinoapi.sockets;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * Interface for connections which are driven by a {@link SocketReactor}. All
+ * methods are called on the reactor thread.
+ *
+ * @see SocketReactor
+ */
+public interface IReactorConnection {
+
+	/**
+	 * Called when the connection was registered, its deadline passed or someone
+	 * requested a wakeup through {@link SocketReactor#wakeup(IReactorConnection)}.
+	 * Connect, send pending commands or check for timeouts here.
+	 */
+	void process();
+
+	/**
+	 * Called when the channel registered for this connection is ready for one of
+	 * its interest operations.
+	 *
+	 * @param key
+	 *            The selected key of the channel.
+	 */
+	void onSelected(SelectionKey key);
+
+	/**
+	 * @return Point in time in {@link SocketReactor#now()} milliseconds when
+	 *         {@link #process()} has to be called again at the latest.
+	 *         {@link Long#MAX_VALUE} if there is nothing to do until the channel
+	 *         becomes ready.
+	 */
+	long getDeadline();
+
+	/**
+	 * Called when handling the connection failed unexpectedly, e.g. because of a
+	 * bug. Close the channel and schedule another connection attempt.
+	 *
+	 * @param e
+	 *            What went wrong.
+	 */
+	void onError(Exception e);
+
+	/**
+	 * Called when the reactor shuts down. Close the channel.
+	 */
+	void close();
+}
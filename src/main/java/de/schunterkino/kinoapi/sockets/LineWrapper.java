@@ -2,46 +2,141 @@ package de.schunterkino.kinoapi.sockets;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
 
 import purejavacomm.SerialPort;
 
 public class LineWrapper {
 
-	private Socket socket;
+	private SocketChannel channel;
 
 	private SerialPort serial;
 
-	public LineWrapper(Socket socket) {
-		this.socket = socket;
+	// Data which couldn't be written to the non-blocking channel right away.
+	private ByteBuffer pendingOutput;
+
+	// Don't write to the serial port again until it sent the last write.
+	private boolean pacedWrites;
+	// Nanoseconds it takes to send one byte over the serial line.
+	private long byteTime;
+	private volatile boolean writing;
+	// When the last write is sent at the latest in System.nanoTime(), in case
+	// the port doesn't tell us.
+	private volatile long writeEnd;
+
+	// Extra time to give the port to send a write.
+	private static final long WRITE_MARGIN = TimeUnit.MILLISECONDS.toNanos(50);
+
+	public LineWrapper(SocketChannel channel) {
+		this.channel = channel;
 		this.serial = null;
+		this.pendingOutput = ByteBuffer.allocate(1024);
+		this.pacedWrites = false;
+		this.writing = false;
 	}
 
 	public LineWrapper(SerialPort serial) {
-		this.socket = null;
+		this.channel = null;
 		this.serial = serial;
+		this.pendingOutput = null;
+		this.pacedWrites = false;
+		this.writing = false;
+	}
+
+	/**
+	 * Wait for {@link #onOutputEmpty()} before writing to the serial port again.
+	 * Commands queued in the meantime wait in our queue instead of the driver's
+	 * buffer, so user commands can still go before pending status polls.
+	 * 
+	 * @param baudRate
+	 *            Speed of the serial line to tell how long a write takes at most
+	 *            if the port never reports it.
+	 */
+	public void enableWritePacing(int baudRate) {
+		pacedWrites = true;
+		// A start bit, 8 data bits and a stop bit.
+		byteTime = TimeUnit.SECONDS.toNanos(10) / baudRate;
+	}
+
+	/**
+	 * Called when the serial port sent everything. Can be called from any thread.
+	 */
+	public void onOutputEmpty() {
+		writing = false;
+	}
+
+	/**
+	 * @return False while the serial port is still sending the last write.
+	 */
+	public boolean isWritable() {
+		if (writing && System.nanoTime() - writeEnd >= 0)
+			writing = false;
+		return !writing;
 	}
 
+	/**
+	 * @return Milliseconds until the last write is sent at the latest.
+	 */
+	public long getWriteDelay() {
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(writeEnd - System.nanoTime()));
+	}
+
+	/**
+	 * Only serial ports are read through a stream. Socket channels are read by the
+	 * {@link SocketReactor}.
+	 */
 	public InputStream getInputStream() throws IOException {
-		if (socket != null)
-			return socket.getInputStream();
 		if (serial != null)
 			return serial.getInputStream();
 		return null;
 	}
 
-	public OutputStream getOutputStream() throws IOException {
-		if (socket != null)
-			return socket.getOutputStream();
-		if (serial != null)
-			return serial.getOutputStream();
-		return null;
+	/**
+	 * Write all remaining bytes of the buffer.
+	 */
+	public void write(ByteBuffer data) throws IOException {
+		if (channel != null) {
+			// Make room for the new data if the socket is lagging behind.
+			if (pendingOutput.remaining() < data.remaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(pendingOutput.position() + data.remaining());
+				pendingOutput.flip();
+				bigger.put(pendingOutput);
+				pendingOutput = bigger;
+			}
+			pendingOutput.put(data);
+			flush();
+		} else if (serial != null) {
+			// The port might report the write as sent before write() returns.
+			if (pacedWrites) {
+				writeEnd = System.nanoTime() + 2 * data.remaining() * byteTime + WRITE_MARGIN;
+				writing = true;
+			}
+			serial.getOutputStream().write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			data.position(data.limit());
+		}
+	}
+
+	/**
+	 * Try to write everything which is still pending to the non-blocking channel.
+	 */
+	public void flush() throws IOException {
+		if (!hasPendingOutput())
+			return;
+
+		pendingOutput.flip();
+		channel.write(pendingOutput);
+		pendingOutput.compact();
+	}
+
+	public boolean hasPendingOutput() {
+		return channel != null && pendingOutput.position() > 0;
 	}
 
 	public boolean isConnected() {
-		if (socket != null)
-			return socket.isConnected();
+		if (channel != null)
+			return channel.isConnected();
 		if (serial != null)
 			return true;
 		return false;
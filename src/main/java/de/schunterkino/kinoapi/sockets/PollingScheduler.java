@@ -0,0 +1,89 @@
+package de.schunterkino.kinoapi.sockets;
+
+import de.schunterkino.kinoapi.App;
+import de.schunterkino.kinoapi.metrics.Metrics;
+
+/**
+ * Decides how often the status of a device is polled. The device is polled
+ * slowly while no websocket client is around to see the updates and quickly
+ * for a short while after a command was sent or the first client connected.
+ */
+public class PollingScheduler {
+
+	private String device;
+
+	// Poll interval in milliseconds while clients are connected.
+	private int interval;
+
+	// Poll interval in milliseconds while nobody is connected.
+	private int idleInterval;
+
+	// Poll interval in milliseconds right after something happened.
+	private int burstInterval;
+
+	// How long to keep polling with the burst interval in milliseconds.
+	private int burstDuration;
+
+	private volatile int clientCount;
+
+	// When to stop polling with the burst interval in SocketReactor.now() time.
+	private volatile long burstEnd;
+
+	/**
+	 * Read the intervals of the device from the configuration file.
+	 * 
+	 * @param device
+	 *            Prefix of the configuration keys like "dolby" for
+	 *            dolby_poll_interval.
+	 */
+	public PollingScheduler(String device) {
+		this.device = device;
+		this.interval = App.getConfigurationInteger(device + "_poll_interval");
+		this.idleInterval = App.getConfigurationInteger(device + "_idle_poll_interval");
+		this.burstInterval = App.getConfigurationInteger(device + "_burst_poll_interval");
+		this.burstDuration = App.getConfigurationInteger("poll_burst_duration");
+		this.clientCount = 0;
+		this.burstEnd = 0;
+	}
+
+	/**
+	 * @return The time in milliseconds to wait between two status polls right now.
+	 */
+	public int getInterval() {
+		int currentInterval;
+		if (SocketReactor.now() < burstEnd)
+			currentInterval = burstInterval;
+		else if (clientCount == 0)
+			currentInterval = idleInterval;
+		else
+			currentInterval = interval;
+
+		Metrics.setGauge(device + ".poll_interval_ms", currentInterval);
+		return currentInterval;
+	}
+
+	/**
+	 * Poll quickly for a while, e.g. because a command changed the state of the
+	 * device.
+	 */
+	public void startBurst() {
+		burstEnd = SocketReactor.now() + burstDuration;
+	}
+
+	/**
+	 * Update the number of connected websocket clients.
+	 * 
+	 * @return True if the first client connected and the polling should restart
+	 *         right away.
+	 */
+	public boolean setClientCount(int count) {
+		int oldCount = clientCount;
+		clientCount = count;
+
+		if (oldCount == 0 && count > 0) {
+			startBurst();
+			return true;
+		}
+		return false;
+	}
+}
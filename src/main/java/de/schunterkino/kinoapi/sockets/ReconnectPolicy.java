@@ -0,0 +1,104 @@
+package de.schunterkino.kinoapi.sockets;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import de.schunterkino.kinoapi.App;
+import de.schunterkino.kinoapi.metrics.Metrics;
+
+/**
+ * Decides how long to wait before connecting to a device again. The first
+ * retry happens right away to get over short hiccups. After that the delay
+ * doubles with every failure up to a maximum, so a device which is switched
+ * off isn't bothered all the time. A random jitter keeps the retries of
+ * several devices from happening at the same time.
+ */
+public class ReconnectPolicy {
+
+	private String device;
+
+	// Delay in milliseconds before the second retry.
+	private int minDelay;
+
+	// Upper bound of the delay in milliseconds.
+	private int maxDelay;
+
+	// Milliseconds between checks if the device is back while waiting.
+	private int probeInterval;
+
+	// Number of failed attempts since the last successful connection.
+	private int failures;
+
+	// When the connection was lost in SocketReactor.now() time. -1 while
+	// connected.
+	private long downSince;
+	private boolean everConnected;
+
+	/**
+	 * @param device
+	 *            Name of the device used for the metrics.
+	 */
+	public ReconnectPolicy(String device) {
+		this.device = device;
+		this.minDelay = App.getConfigurationInteger("reconnect_min_delay");
+		this.maxDelay = App.getConfigurationInteger("reconnect_max_delay");
+		this.probeInterval = App.getConfigurationInteger("reconnect_probe_interval");
+		this.failures = 0;
+		this.downSince = SocketReactor.now();
+		this.everConnected = false;
+		Metrics.setGauge(device + ".connected", 0);
+	}
+
+	/**
+	 * A connection attempt failed or an established connection broke.
+	 *
+	 * @param deviceReachable
+	 *            True if the device answered but didn't accept the connection,
+	 *            e.g. because it's still booting. It's retried quickly then.
+	 * @return Time to wait until the next attempt in milliseconds.
+	 */
+	public long onFailure(boolean deviceReachable) {
+		onDisconnected();
+		failures++;
+		Metrics.increment(device + ".connection_failures");
+
+		// Maybe it was just a hiccup.
+		if (failures == 1)
+			return 0;
+
+		// The device is coming back. Don't miss it.
+		if (deviceReachable)
+			return probeInterval;
+
+		long delay = Math.min(maxDelay, (long) minDelay << Math.min(failures - 2, 20));
+		// Wait somewhere between half and the full delay.
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	/**
+	 * The connection to the device was established.
+	 */
+	public void onConnected() {
+		if (downSince != -1) {
+			Metrics.add(device + ".downtime_ms", SocketReactor.now() - downSince);
+			if (everConnected)
+				Metrics.increment(device + ".reconnects");
+		}
+		failures = 0;
+		downSince = -1;
+		everConnected = true;
+		Metrics.setGauge(device + ".connected", 1);
+	}
+
+	private void onDisconnected() {
+		if (downSince == -1)
+			downSince = SocketReactor.now();
+		Metrics.setGauge(device + ".connected", 0);
+	}
+
+	/**
+	 * @return Milliseconds between checks if the device is back while waiting.
+	 */
+	public int getProbeInterval() {
+		return probeInterval;
+	}
+}
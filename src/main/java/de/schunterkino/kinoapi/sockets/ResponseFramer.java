@@ -0,0 +1,168 @@
+package de.schunterkino.kinoapi.sockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the byte stream of a device into single responses ending with the
+ * protocol's terminator. The data is read into one reusable buffer and frames
+ * are handed out as views into that buffer, so no garbage is produced while
+ * reading.
+ */
+public class ResponseFramer {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	// Received data in write mode. Everything between frameStart and the position
+	// wasn't handed out as a frame yet.
+	private ByteBuffer buffer;
+	private int frameStart;
+
+	// Bytes before this position are known to not contain the terminator.
+	private int scanPosition;
+
+	private byte terminator;
+
+	private Frame frame;
+
+	/**
+	 * @param terminator
+	 *            Character which ends a single response.
+	 * @param direct
+	 *            Use a direct buffer to read from channels without copying. Heap
+	 *            buffers are required to read from streams.
+	 */
+	public ResponseFramer(char terminator, boolean direct) {
+		this.buffer = direct ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+		this.frameStart = 0;
+		this.scanPosition = 0;
+		this.terminator = (byte) terminator;
+		this.frame = new Frame();
+	}
+
+	public void setTerminator(char terminator) {
+		this.terminator = (byte) terminator;
+	}
+
+	/**
+	 * Read whatever the channel has to offer.
+	 *
+	 * @return The number of bytes read or -1 on EOF.
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		compact();
+		return channel.read(buffer);
+	}
+
+	/**
+	 * Read whatever the stream has to offer. Only works with heap buffers.
+	 *
+	 * @return The number of bytes read or -1 on EOF.
+	 */
+	public int read(InputStream in) throws IOException {
+		compact();
+		int ret_read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		if (ret_read > 0)
+			buffer.position(buffer.position() + ret_read);
+		return ret_read;
+	}
+
+	/**
+	 * Get the next complete response.
+	 *
+	 * @return The response including the terminator or null if there is no
+	 *         complete response yet. The returned view is only valid until the
+	 *         next call to this framer.
+	 */
+	public CharSequence nextFrame() {
+		int end = buffer.position();
+		for (int i = scanPosition; i < end; i++) {
+			if (buffer.get(i) == terminator) {
+				frame.set(frameStart, i + 1 - frameStart);
+				frameStart = i + 1;
+				scanPosition = frameStart;
+				return frame;
+			}
+		}
+		scanPosition = end;
+		return null;
+	}
+
+	/**
+	 * @return True if the buffer is full without containing a complete response.
+	 */
+	public boolean isFull() {
+		return frameStart == 0 && !buffer.hasRemaining();
+	}
+
+	/**
+	 * @return Number of bytes of the incomplete response.
+	 */
+	public int pending() {
+		return buffer.position() - frameStart;
+	}
+
+	/**
+	 * Drop all received data.
+	 */
+	public void clear() {
+		buffer.clear();
+		frameStart = 0;
+		scanPosition = 0;
+	}
+
+	// Move the incomplete response to the front of the buffer to make room for
+	// more data.
+	private void compact() {
+		if (frameStart == 0)
+			return;
+
+		buffer.flip();
+		buffer.position(frameStart);
+		buffer.compact();
+		scanPosition -= frameStart;
+		frameStart = 0;
+	}
+
+	/**
+	 * ASCII view on a part of the receive buffer.
+	 */
+	private class Frame implements CharSequence {
+		private int offset;
+		private int length;
+
+		void set(int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length)
+				throw new IndexOutOfBoundsException(index);
+			return (char) (buffer.get(offset + index) & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end > length || start > end)
+				throw new IndexOutOfBoundsException();
+			StringBuilder sb = new StringBuilder(end - start);
+			for (int i = start; i < end; i++)
+				sb.append(charAt(i));
+			return sb.toString();
+		}
+
+		@Override
+		public String toString() {
+			return subSequence(0, length).toString();
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package de.schunterkino.kinoapi.sockets;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single threaded event loop which multiplexes all socket connections to the
+ * cinema hardware. The thread only wakes up if one of the channels is ready or
+ * the deadline of one of the connections passed, e.g. because the next status
+ * poll is due.
+ *
+ * If waiting for the sockets fails, {@link #run()} closes the selector and
+ * throws. Running it again opens a new selector and tells all connections to
+ * reconnect, so they register their channels with the new one.
+ */
+public class SocketReactor implements Runnable {
+
+	private volatile Selector selector;
+
+	// All connections hosted by this reactor. Only accessed on the reactor thread.
+	private LinkedList<IReactorConnection> connections;
+
+	// Connections which were added from other threads and weren't picked up yet.
+	private ConcurrentLinkedQueue<IReactorConnection> addedConnections;
+
+	// Connections which want to be processed right away, e.g. because a new
+	// command was queued from a websocket thread.
+	private ConcurrentLinkedQueue<IReactorConnection> wakeupConnections;
+
+	private volatile boolean stop;
+
+	public SocketReactor() {
+		this.selector = openSelector();
+		this.connections = new LinkedList<>();
+		this.addedConnections = new ConcurrentLinkedQueue<>();
+		this.wakeupConnections = new ConcurrentLinkedQueue<>();
+		this.stop = false;
+	}
+
+	/**
+	 * Monotonic clock used for all connection deadlines. Not affected by the
+	 * system clock being set after boot.
+	 *
+	 * @return Current time in milliseconds.
+	 */
+	public static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	/**
+	 * Add a connection to this reactor. Can be called from any thread.
+	 *
+	 * @param connection
+	 *            The connection to drive.
+	 */
+	public void register(IReactorConnection connection) {
+		addedConnections.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Process the connection as soon as possible on the reactor thread. Can be
+	 * called from any thread.
+	 *
+	 * @param connection
+	 *            The connection which has new work to do.
+	 */
+	public void wakeup(IReactorConnection connection) {
+		wakeupConnections.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Register a channel with the selector of this reactor. Must be called on the
+	 * reactor thread.
+	 */
+	SelectionKey registerChannel(SelectableChannel channel, int ops, IReactorConnection connection)
+			throws ClosedChannelException {
+		return channel.register(selector, ops, connection);
+	}
+
+	/**
+	 * Drive the connections until {@link #stop()} is called.
+	 *
+	 * @throws UncheckedIOException
+	 *             If waiting for the sockets failed. The connections stay
+	 *             registered and reconnect once this is called again.
+	 */
+	@Override
+	public void run() {
+		if (!selector.isOpen()) {
+			resetConnections(new ClosedSelectorException());
+			selector = openSelector();
+		}
+
+		while (!stop) {
+			// Pick up new connections and start connecting.
+			IReactorConnection connection;
+			while ((connection = addedConnections.poll()) != null) {
+				connections.add(connection);
+				process(connection);
+			}
+
+			// Someone queued a command. Send it right away.
+			while ((connection = wakeupConnections.poll()) != null) {
+				process(connection);
+			}
+
+			// Sleep until the next connection wants to do something.
+			long deadline = Long.MAX_VALUE;
+			for (IReactorConnection c : connections)
+				deadline = Math.min(deadline, c.getDeadline());
+
+			try {
+				long now = now();
+				if (deadline == Long.MAX_VALUE)
+					selector.select();
+				else if (deadline > now)
+					selector.select(deadline - now);
+				else
+					selector.selectNow();
+			} catch (IOException e) {
+				System.err.printf("Reactor: Error while waiting for sockets: %s%n", e.getMessage());
+				closeSelector();
+				throw new UncheckedIOException("Failed to wait for sockets", e);
+			}
+
+			// Dispatch the ready channels to their connections.
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid())
+					onSelected((IReactorConnection) key.attachment(), key);
+			}
+
+			// Handle all expired deadlines.
+			long now = now();
+			for (IReactorConnection c : connections) {
+				if (c.getDeadline() <= now)
+					process(c);
+			}
+		}
+
+		// Shutdown all connections.
+		for (IReactorConnection c : connections)
+			c.close();
+		connections.clear();
+		closeSelector();
+	}
+
+	private static Selector openSelector() {
+		try {
+			return Selector.open();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to open selector", e);
+		}
+	}
+
+	private void closeSelector() {
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Who cares.
+		}
+	}
+
+	// The channels registered with the old selector are gone. Let the
+	// connections reconnect with the new one.
+	private void resetConnections(Exception e) {
+		for (IReactorConnection c : connections)
+			onUnexpectedError(c, e);
+	}
+
+	// The connections handle their own errors. Don't let a bug in one of them
+	// stop the thread all the other connections depend on.
+	private void process(IReactorConnection connection) {
+		try {
+			connection.process();
+		} catch (RuntimeException e) {
+			onUnexpectedError(connection, e);
+		}
+	}
+
+	private void onSelected(IReactorConnection connection, SelectionKey key) {
+		try {
+			connection.onSelected(key);
+		} catch (RuntimeException e) {
+			onUnexpectedError(connection, e);
+		}
+	}
+
+	// Let the connection start over on its own schedule.
+	private void onUnexpectedError(IReactorConnection connection, Exception e) {
+		try {
+			connection.onError(e);
+		} catch (RuntimeException reconnectError) {
+			System.err.printf("Reactor: Failed to reset %s: %s%n", connection, reconnectError);
+		}
+	}
+
+	public void stop() {
+		stop = true;
+		selector.wakeup();
+	}
+}
@@ -0,0 +1,294 @@
+package de.schunterkino.kinoapi.websocket;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * Compact binary encoding of the JSON messages for clients which negotiate
+ * the {@link #PROTOCOL} websocket subprotocol. Every value starts with a type
+ * byte. Numbers are written as variable length integers and the names and
+ * values which appear in every message are replaced by their index in a fixed
+ * string table.
+ *
+ * @see API.md
+ */
+public class BinaryCodec {
+
+	/**
+	 * Name of the websocket subprotocol.
+	 */
+	public static final String PROTOCOL = "kinoapi.binary.v1";
+
+	// Types of the values.
+	private static final byte NULL = 0x00;
+	private static final byte FALSE = 0x01;
+	private static final byte TRUE = 0x02;
+	// Zigzag encoded variable length integer.
+	private static final byte INTEGER = 0x03;
+	// 8 byte IEEE 754 big endian.
+	private static final byte DOUBLE = 0x04;
+	// Length followed by UTF-8.
+	private static final byte STRING = 0x05;
+	// Index into the string table.
+	private static final byte TABLE_STRING = 0x06;
+	// Number of elements followed by the values.
+	private static final byte ARRAY = 0x07;
+	// Number of members followed by name and value pairs.
+	private static final byte OBJECT = 0x08;
+
+	// Deepest nesting of arrays and objects accepted from clients.
+	private static final int MAX_DEPTH = 16;
+
+	/**
+	 * Strings which are encoded as their index. New strings MUST only be added to
+	 * the end together with a new protocol version.
+	 */
+	private static final List<String> STRING_TABLE = Arrays.asList(
+			// Names of the fields.
+			"msg_type", "action", "error", "connected", "volume", "muted", "mode", "level", "channel", "state",
+			"timestamp", "cooldown", "is_on", "is_open", "is_ingesting", "version", "messages", "topics", "counters",
+			"gauges", "histograms", "count", "p50", "p99", "max",
+			// Message types.
+			"metrics", "lights", "playback", "projector", "subscription",
+			// Actions.
+			"connection", "volume_changed", "mute_status_changed", "input_mode_changed", "decode_mode_changed",
+			"power_changed", "lamp_changed", "douser_changed", "channel_changed", "ingest_state_changed", "get_state",
+			"get", "set_volume", "increase_volume", "decrease_volume", "set_mute_status", "set_input_mode",
+			"set_decode_mode", "set_light_level", "play", "pause", "stop", "lamp_on", "lamp_off", "power_on",
+			"power_off", "douser_open", "douser_close", "set_channel", "subscribe", "unsubscribe",
+			// Values.
+			"cinema_flat", "cinema_scope", "pc_flat", "pc_scope");
+
+	private static final Map<String, Integer> STRING_INDEX = new HashMap<>();
+
+	static {
+		for (int i = 0; i < STRING_TABLE.size(); i++) {
+			if (STRING_INDEX.put(STRING_TABLE.get(i), i) != null)
+				throw new IllegalStateException("Duplicate string in table: " + STRING_TABLE.get(i));
+		}
+	}
+
+	/**
+	 * @return The encoded value.
+	 */
+	public static byte[] encode(JsonElement element) {
+		Writer writer = new Writer();
+		writer.writeValue(element);
+		return writer.toByteArray();
+	}
+
+	/**
+	 * @return The value encoded in the remaining bytes of the buffer.
+	 * @throws JsonSyntaxException
+	 *             Thrown if the bytes aren't a valid encoding.
+	 */
+	public static JsonElement decode(ByteBuffer buffer) throws JsonSyntaxException {
+		try {
+			JsonElement element = readValue(buffer, 0);
+			if (buffer.hasRemaining())
+				throw new JsonSyntaxException("Unexpected data after the value.");
+			return element;
+		} catch (BufferUnderflowException e) {
+			throw new JsonSyntaxException("Unexpected end of the binary message.");
+		}
+	}
+
+	private static JsonElement readValue(ByteBuffer buffer, int depth) {
+		if (depth > MAX_DEPTH)
+			throw new JsonSyntaxException("Binary message nested too deeply.");
+
+		byte type = buffer.get();
+		switch (type) {
+		case NULL:
+			return JsonNull.INSTANCE;
+		case FALSE:
+			return new JsonPrimitive(false);
+		case TRUE:
+			return new JsonPrimitive(true);
+		case INTEGER:
+			long zigzag = readVarint(buffer);
+			return new JsonPrimitive((zigzag >>> 1) ^ -(zigzag & 1));
+		case DOUBLE:
+			return new JsonPrimitive(buffer.getDouble());
+		case STRING:
+		case TABLE_STRING:
+			buffer.position(buffer.position() - 1);
+			return new JsonPrimitive(readString(buffer));
+		case ARRAY:
+			int size = readLength(buffer);
+			JsonArray array = new JsonArray(size);
+			for (int i = 0; i < size; i++)
+				array.add(readValue(buffer, depth + 1));
+			return array;
+		case OBJECT:
+			int members = readLength(buffer);
+			JsonObject object = new JsonObject();
+			for (int i = 0; i < members; i++) {
+				String name = readString(buffer);
+				object.add(name, readValue(buffer, depth + 1));
+			}
+			return object;
+		default:
+			throw new JsonSyntaxException("Unknown type " + type + " in binary message.");
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte type = buffer.get();
+		if (type == TABLE_STRING) {
+			long index = readVarint(buffer);
+			if (index >= STRING_TABLE.size())
+				throw new JsonSyntaxException("Unknown string " + index + " in binary message.");
+			return STRING_TABLE.get((int) index);
+		}
+
+		if (type != STRING)
+			throw new JsonSyntaxException("Expected a string in binary message but got type " + type + ".");
+
+		byte[] utf8 = new byte[readLength(buffer)];
+		buffer.get(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+
+	private static int readLength(ByteBuffer buffer) {
+		long length = readVarint(buffer);
+		// Every byte or element takes at least one byte.
+		if (length > buffer.remaining())
+			throw new JsonSyntaxException("Invalid length " + length + " in binary message.");
+		return (int) length;
+	}
+
+	private static long readVarint(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new JsonSyntaxException("Number too long in binary message.");
+	}
+
+	/**
+	 * Collects the encoded values. Also used to put messages together from
+	 * values which were encoded before.
+	 */
+	public static class Writer {
+		private byte[] bytes;
+		private int length;
+
+		public Writer() {
+			this.bytes = new byte[64];
+			this.length = 0;
+		}
+
+		public void writeValue(JsonElement element) {
+			if (element.isJsonNull()) {
+				writeByte(NULL);
+			} else if (element.isJsonObject()) {
+				JsonObject object = element.getAsJsonObject();
+				writeObjectHeader(object.size());
+				for (Map.Entry<String, JsonElement> member : object.entrySet()) {
+					writeString(member.getKey());
+					writeValue(member.getValue());
+				}
+			} else if (element.isJsonArray()) {
+				JsonArray array = element.getAsJsonArray();
+				writeArrayHeader(array.size());
+				for (JsonElement value : array)
+					writeValue(value);
+			} else {
+				JsonPrimitive primitive = element.getAsJsonPrimitive();
+				if (primitive.isBoolean())
+					writeByte(primitive.getAsBoolean() ? TRUE : FALSE);
+				else if (primitive.isNumber())
+					writeNumber(primitive.getAsString());
+				else
+					writeString(primitive.getAsString());
+			}
+		}
+
+		private void writeNumber(String number) {
+			try {
+				writeInteger(Long.parseLong(number));
+			} catch (NumberFormatException e) {
+				writeByte(DOUBLE);
+				long bits = Double.doubleToLongBits(Double.parseDouble(number));
+				for (int shift = 56; shift >= 0; shift -= 8)
+					writeByte((byte) (bits >>> shift));
+			}
+		}
+
+		public void writeInteger(long value) {
+			writeByte(INTEGER);
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		public void writeString(String string) {
+			Integer index = STRING_INDEX.get(string);
+			if (index != null) {
+				writeByte(TABLE_STRING);
+				writeVarint(index);
+				return;
+			}
+
+			byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+			writeByte(STRING);
+			writeVarint(utf8.length);
+			writeBytes(utf8);
+		}
+
+		public void writeArrayHeader(int size) {
+			writeByte(ARRAY);
+			writeVarint(size);
+		}
+
+		public void writeObjectHeader(int members) {
+			writeByte(OBJECT);
+			writeVarint(members);
+		}
+
+		/**
+		 * Append a value which was encoded before.
+		 */
+		public void writeBytes(byte[] encoded) {
+			ensureCapacity(encoded.length);
+			System.arraycopy(encoded, 0, bytes, length, encoded.length);
+			length += encoded.length;
+		}
+
+		private void writeVarint(long value) {
+			while ((value & ~0x7fL) != 0) {
+				writeByte((byte) ((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			writeByte((byte) value);
+		}
+
+		private void writeByte(byte b) {
+			ensureCapacity(1);
+			bytes[length++] = b;
+		}
+
+		private void ensureCapacity(int additional) {
+			if (length + additional > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+		}
+
+		public byte[] toByteArray() {
+			return Arrays.copyOf(bytes, length);
+		}
+	}
+}
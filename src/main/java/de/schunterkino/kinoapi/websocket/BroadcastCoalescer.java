@@ -0,0 +1,98 @@
+package de.schunterkino.kinoapi.websocket;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+import de.schunterkino.kinoapi.executor.TaskExecutor;
+import de.schunterkino.kinoapi.metrics.Metrics;
+import de.schunterkino.kinoapi.websocket.StateSnapshot.Part;
+
+/**
+ * Holds back notifications about quickly changing values for a short time and
+ * only broadcasts the latest value of every part of the state. Turning the
+ * volume knob or a flapping douser reading then causes a few messages instead
+ * of one per intermediate value.
+ */
+public class BroadcastCoalescer {
+
+	private int window;
+	private BiConsumer<Part, OutgoingMessage> sender;
+
+	// Latest message of every part which wasn't sent yet.
+	private EnumMap<Part, OutgoingMessage> pending;
+
+	// Set while a task waits for the window to end.
+	private boolean scheduled;
+
+	/**
+	 * @param window
+	 *            Milliseconds to hold back changes. 0 sends every change right
+	 *            away.
+	 * @param sender
+	 *            Sends a message about a part of the state to all clients.
+	 */
+	public BroadcastCoalescer(int window, BiConsumer<Part, OutgoingMessage> sender) {
+		this.window = window;
+		this.sender = sender;
+		this.pending = new EnumMap<>(Part.class);
+		this.scheduled = false;
+	}
+
+	/**
+	 * Broadcast the message at the end of the window unless a newer message for
+	 * the same part replaces it.
+	 */
+	public synchronized void offer(Part part, OutgoingMessage message) {
+		if (window <= 0) {
+			sender.accept(part, message);
+			return;
+		}
+
+		if (pending.put(part, message) != null)
+			Metrics.increment("websocket.coalesced_messages");
+
+		if (scheduled)
+			return;
+
+		try {
+			TaskExecutor.execute(this::waitForWindow);
+			scheduled = true;
+		} catch (RejectedExecutionException e) {
+			// We're shutting down. Don't hold anything back.
+			flushPending();
+		}
+	}
+
+	/**
+	 * Broadcast the message right away. Changes which are held back are sent
+	 * before it, so clients see all changes in order.
+	 */
+	public synchronized void send(Part part, OutgoingMessage message) {
+		flushPending();
+		sender.accept(part, message);
+	}
+
+	private void waitForWindow() {
+		try {
+			Thread.sleep(window);
+		} catch (InterruptedException e) {
+			// Send what we have.
+		}
+
+		synchronized (this) {
+			scheduled = false;
+			flushPending();
+		}
+	}
+
+	private void flushPending() {
+		if (pending.isEmpty())
+			return;
+
+		for (Map.Entry<Part, OutgoingMessage> entry : pending.entrySet())
+			sender.accept(entry.getKey(), entry.getValue());
+		pending.clear();
+	}
+}
@@ -6,6 +6,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.HttpCookie;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.security.KeyFactory;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
@@ -17,9 +18,17 @@ import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -27,15 +36,21 @@ import javax.net.ssl.SSLContext;
 
 import org.java_websocket.WebSocket;
 import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
 import org.java_websocket.exceptions.InvalidDataException;
 import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.extensions.IExtension;
 import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.handshake.ServerHandshakeBuilder;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
 import org.java_websocket.server.DefaultSSLWebSocketServerFactory;
 import org.java_websocket.server.WebSocketServer;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
 
 import de.schunterkino.kinoapi.App;
@@ -53,11 +68,15 @@ import de.schunterkino.kinoapi.dolby.DolbyCommand;
 import de.schunterkino.kinoapi.dolby.DolbySocketCommands;
 import de.schunterkino.kinoapi.dolby.IDolbyStatusUpdateReceiver;
 import de.schunterkino.kinoapi.dolby.InputMode;
+import de.schunterkino.kinoapi.executor.TaskExecutor;
 import de.schunterkino.kinoapi.jnior.IJniorStatusUpdateReceiver;
 import de.schunterkino.kinoapi.jnior.JniorCommand;
 import de.schunterkino.kinoapi.jnior.JniorSocketCommands;
+import de.schunterkino.kinoapi.metrics.Metrics;
 import de.schunterkino.kinoapi.sockets.BaseSerialPortClient;
 import de.schunterkino.kinoapi.sockets.BaseSocketClient;
+import de.schunterkino.kinoapi.websocket.StateSnapshot.Part;
+import de.schunterkino.kinoapi.websocket.messages.AckMessage;
 import de.schunterkino.kinoapi.websocket.messages.BaseMessage;
 import de.schunterkino.kinoapi.websocket.messages.ErrorMessage;
 import de.schunterkino.kinoapi.websocket.messages.christie.ActiveChannelChangedMessage;
@@ -68,15 +87,14 @@ import de.schunterkino.kinoapi.websocket.messages.christie.LampChangedMessage;
 import de.schunterkino.kinoapi.websocket.messages.christie.PIBConnectionMessage;
 import de.schunterkino.kinoapi.websocket.messages.christie.PowerChangedMessage;
 import de.schunterkino.kinoapi.websocket.messages.jnior.LightsConnectionMessage;
+import de.schunterkino.kinoapi.websocket.messages.metrics.MetricsMessage;
+import de.schunterkino.kinoapi.websocket.messages.subscription.SubscriptionMessage;
 import de.schunterkino.kinoapi.websocket.messages.volume.DecodeModeChangedMessage;
 import de.schunterkino.kinoapi.websocket.messages.volume.DolbyConnectionMessage;
 import de.schunterkino.kinoapi.websocket.messages.volume.InputModeChangedMessage;
 import de.schunterkino.kinoapi.websocket.messages.volume.MuteStatusChangedMessage;
 import de.schunterkino.kinoapi.websocket.messages.volume.VolumeChangedMessage;
 import io.jsonwebtoken.ExpiredJwtException;
-import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.io.Decoders;
-import io.jsonwebtoken.security.Keys;
 
 /**
  * WebSocket server class which serves the documented JSON API. This class acts
@@ -93,6 +111,12 @@ public class CinemaWebSocketServer extends WebSocketServer implements IDolbyStat
 	public static final int AUTH_INVALID_TOKEN_ERROR_CODE = 4401;
 	public static final int AUTH_TOKEN_EXPIRED_ERROR_CODE = 4402;
 
+	// Close the websocket if the client doesn't read the messages fast enough.
+	public static final int SLOW_CLIENT_ERROR_CODE = 4408;
+
+	// Milliseconds between checks if slow clients caught up.
+	private static final int SLOW_CLIENT_CHECK_INTERVAL = 100;
+
 	// The number of threads that will be used to process the incoming network data.
 	// By default this will be Runtime.getRuntime().availableProcessors() which is
 	// 1 on a raspberry pi.
@@ -126,11 +150,46 @@ public class CinemaWebSocketServer extends WebSocketServer implements IDolbyStat
 	private BaseSerialPortClient<SolariaSocketCommands, ISolariaSerialStatusUpdateReceiver, SolariaCommand> solaria;
 
 	/**
-	 * List of JSON protocol incoming command handlers. Incoming messages on the
-	 * WebSockets are passed to the handlers until one claims responsibility for the
-	 * packet.
+	 * Routing table of the JSON protocol. Incoming messages on the WebSockets
+	 * are passed to the handler registered for their message type and action.
+	 */
+	private MessageRouter router;
+
+	/**
+	 * Checks the tokens of new connections.
+	 */
+	private TokenVerifier tokenVerifier;
+
+	/**
+	 * Current state of all devices which is sent to new clients.
+	 */
+	private StateSnapshot snapshot;
+
+	/**
+	 * Holds back quickly changing values before they're broadcast.
+	 */
+	private BroadcastCoalescer coalescer;
+
+	/**
+	 * Latest broadcast notifications for clients which reconnect.
+	 */
+	private ReplayRing replayRing;
+
+	/**
+	 * Changes which are always broadcast right away.
+	 */
+	private static final EnumSet<Part> URGENT_PARTS = EnumSet.of(Part.DolbyConnection, Part.LightsConnection,
+			Part.IMBConnection, Part.PIBConnection, Part.PowerState, Part.LampState);
+
+	/**
+	 * Clients subscribed to each topic.
 	 */
-	private LinkedList<IWebSocketMessageHandler> messageHandlers;
+	private EnumMap<Topic, Set<WebSocket>> subscribers;
+
+	/**
+	 * Set while a task checks if slow clients caught up.
+	 */
+	private AtomicBoolean checkingSlowClients;
 
 	/**
 	 * Creates a CinemaWebSocketServer on the desired port.
@@ -147,30 +206,79 @@ public class CinemaWebSocketServer extends WebSocketServer implements IDolbyStat
 			BaseSocketClient<JniorSocketCommands, IJniorStatusUpdateReceiver, JniorCommand> jnior,
 			BaseSocketClient<ChristieSocketCommands, IChristieStatusUpdateReceiver, ChristieCommand> christie,
 			BaseSerialPortClient<SolariaSocketCommands, ISolariaSerialStatusUpdateReceiver, SolariaCommand> solaria) {
-		super(new InetSocketAddress(port), DECODER_POOL_SIZE);
+		super(new InetSocketAddress(port), DECODER_POOL_SIZE, createDrafts());
 
 		this.gson = new Gson();
-		this.messageHandlers = new LinkedList<>();
+		this.router = new MessageRouter();
+		this.tokenVerifier = new TokenVerifier();
+		this.replayRing = new ReplayRing(App.getConfigurationInteger("websocket_replay_size"));
+		this.snapshot = new StateSnapshot(replayRing.getLastSequence());
+		this.coalescer = new BroadcastCoalescer(App.getConfigurationInteger("websocket_coalesce_window"),
+				this::sendToClients);
+		this.checkingSlowClients = new AtomicBoolean(false);
+		this.subscribers = new EnumMap<>(Topic.class);
+		for (Topic topic : Topic.values())
+			subscribers.put(topic, ConcurrentHashMap.newKeySet());
 
 		// Start listening for dolby events.
 		this.dolby = dolby;
 		// Start listening for Dolby events like volume changes.
 		dolby.getCommands().registerListener(this);
-		messageHandlers.add(dolby.getCommands());
+		dolby.getCommands().registerRoutes(router);
 
 		this.jnior = jnior;
 		// Start listening for Jnior events like connection updates.
 		jnior.getCommands().registerListener(this);
-		messageHandlers.add(jnior.getCommands());
+		jnior.getCommands().registerRoutes(router);
 
 		this.christie = christie;
 		// Start listening for Christie IMB events like connection updates.
 		christie.getCommands().registerListener(this);
-		messageHandlers.add(christie.getCommands());
+		christie.getCommands().registerRoutes(router);
 
 		this.solaria = solaria;
 		solaria.getCommands().registerListener(this);
-		messageHandlers.add(solaria.getCommands());
+		solaria.getCommands().registerRoutes(router);
+
+		// The current status of all devices.
+		router.add("state", "get_state", (conn, msg) -> sendState(conn));
+		// Only receive the notifications of some devices.
+		router.add("subscription", "subscribe", SubscriptionMessage.class, (conn, msg) -> {
+			ClientSession session = conn.getAttachment();
+			updateSubscriptions(conn, session.subscribe(getTopicMask(msg)));
+		});
+		router.add("subscription", "unsubscribe", SubscriptionMessage.class, (conn, msg) -> {
+			ClientSession session = conn.getAttachment();
+			updateSubscriptions(conn, session.unsubscribe(getTopicMask(msg)));
+		});
+		// Statistics about the hardware connections.
+		router.add("metrics", "get", (conn, msg) -> reply(conn, gson.toJson(new MetricsMessage())));
+
+		// Start with what the devices know already. All changes from now on are
+		// reported through the listeners.
+		snapshot.update(Part.DolbyConnection, gson.toJson(new DolbyConnectionMessage(dolby.isConnected())));
+		if (dolby.isConnected())
+			updateDolbySnapshot();
+		snapshot.update(Part.LightsConnection, gson.toJson(new LightsConnectionMessage(jnior.isConnected())));
+		snapshot.update(Part.IMBConnection, gson.toJson(new IMBConnectionMessage(christie.isConnected())));
+		snapshot.update(Part.PIBConnection, gson.toJson(new PIBConnectionMessage(solaria.isConnected())));
+		if (solaria.isConnected())
+			updateSolariaSnapshot();
+	}
+
+	/**
+	 * Offer the binary encoding and compression to clients which ask for it.
+	 * Clients without a subprotocol use JSON.
+	 */
+	private static List<Draft> createDrafts() {
+		List<IExtension> extensions = new ArrayList<>();
+		int compressionLevel = App.getConfigurationInteger("websocket_compression_level");
+		if (compressionLevel > 0)
+			extensions.add(new MeasuredDeflateExtension(compressionLevel,
+					App.getConfigurationInteger("websocket_compression_threshold")));
+
+		List<IProtocol> protocols = Arrays.asList(new Protocol(BinaryCodec.PROTOCOL), new Protocol(""));
+		return Collections.singletonList(new Draft_6455(extensions, protocols));
 	}
 
 	@Override
@@ -205,13 +313,9 @@ public class CinemaWebSocketServer extends WebSocketServer implements IDolbyStat
 		String compactJws = tokenCookie.getValue();
 		// System.out.println("Token is " + compactJws);
 
-		// Validate the signature and the subject. The subject is just there
-		// because.
+		// Validate the signature and the subject.
 		try {
-			Jwts.parser().requireSubject("SchunterKinoRemote")
-					.verifyWith(Keys.hmacShaKeyFor(Decoders.BASE64.decode(App.getConfigurationString("jws_signature_key"))))
-					.build()
-					.parseSignedClaims(compactJws);
+			tokenVerifier.verify(compactJws);
 		} catch (ExpiredJwtException e) {
 			System.err.println("Expired! " + e.getMessage());
 			// e.printStackTrace();
@@ -257,59 +361,328 @@ public class CinemaWebSocketServer extends WebSocketServer implements IDolbyStat
 			return;
 		}
 
-		// Inform the new client of the current status.
-
 		try {
-			// Let the client know if we were able to connect to the Dolby audio
-			// processor.
-			conn.send(gson.toJson(new DolbyConnectionMessage(dolby.isConnected())));
-			if (dolby.isConnected()) {
-				// If we're connected, send the current status too.
-				conn.send(gson.toJson(new VolumeChangedMessage(dolby.getCommands().getVolume())));
-				conn.send(gson.toJson(new MuteStatusChangedMessage(dolby.getCommands().isMuted())));
-				conn.send(gson.toJson(new InputModeChangedMessage(dolby.getCommands().getInputMode())));
-				conn.send(gson.toJson(new DecodeModeChangedMessage(dolby.getCommands().getDecodeMode())));
+			// Send a client which was connected a moment ago only what it missed.
+			long resumeFrom = getResumeSequence(handshake);
+			if (acceptClient(conn, resumeFrom)) {
+				System.out.println("WebSocket: " + prettySocket(conn) + " resumed after " + resumeFrom);
+				return;
 			}
 
-			// Also tell the client if we have a connection to the Jnior box.
-			conn.send(gson.toJson(new LightsConnectionMessage(jnior.isConnected())));
+			// Inform the new client of the current status.
+			sendState(conn);
+		} catch (WebsocketNotConnectedException e) {
+			// Websocket disconnected while we're sending the current state.
+			// Just drop the connection.
+		}
+	}
 
-			// And if the projector is up.
-			conn.send(gson.toJson(new IMBConnectionMessage(christie.isConnected())));
+	/**
+	 * Start sending notifications to a client which passed the token check.
+	 *
+	 * @param resumeFrom
+	 *            Sequence number of the latest notification the client received
+	 *            before it reconnected. -1 for new clients.
+	 * @return True if the client was sent the notifications it missed and
+	 *         doesn't need the whole state.
+	 */
+	protected boolean acceptClient(WebSocket conn, long resumeFrom) {
+		IProtocol protocol = conn.getProtocol();
+		boolean binary = protocol != null && BinaryCodec.PROTOCOL.equals(protocol.getProvidedProtocol());
+		ClientSession session = new ClientSession(binary);
+		conn.setAttachment(session);
+
+		// Don't let new notifications overtake the missed ones.
+		boolean resumed;
+		synchronized (replayRing) {
+			updateSubscriptions(conn, session.getTopics());
+			resumed = resumeFrom != -1 && resume(conn, resumeFrom);
+		}
 
-			// Tell which part of the projector is currently enabled.
-			conn.send(gson.toJson(new PIBConnectionMessage(solaria.isConnected())));
-			if (solaria.isConnected()) {
-				if (solaria.getCommands().getPowerStateChangedTimestamp() != null) {
-					conn.send(gson.toJson(new PowerChangedMessage(solaria.getCommands().getPowerState(),
-							solaria.getCommands().getPowerStateChangedTimestamp())));
-				}
+		// Someone is watching. Poll the devices more often.
+		updateClientCount();
+		return resumed;
+	}
 
-				if (solaria.getCommands().getLampStateChangedTimestamp() != null) {
-					conn.send(gson.toJson(new LampChangedMessage(solaria.getCommands().getLampState(),
-							solaria.getCommands().getLampStateChangedTimestamp(),
-							solaria.getCommands().getCooldownTime())));
-				}
+	/**
+	 * Let the subscriber index know which topics the client is interested in.
+	 */
+	private void updateSubscriptions(WebSocket conn, int topics) {
+		for (Topic topic : Topic.values()) {
+			if ((topics & topic.getMask()) != 0)
+				subscribers.get(topic).add(conn);
+			else
+				subscribers.get(topic).remove(conn);
+		}
+
+		// Don't keep connections which closed in the meantime.
+		if (conn.isClosing() || conn.isClosed()) {
+			for (Set<WebSocket> connections : subscribers.values())
+				connections.remove(conn);
+		}
+	}
 
-				conn.send(gson.toJson(new DouserChangedMessage(solaria.getCommands().isDouserOpen())));
+	private static int getTopicMask(SubscriptionMessage msg) throws WebSocketCommandException {
+		if (msg.getTopics() == null)
+			throw new WebSocketCommandException("Missing list of topics.");
 
-				conn.send(gson.toJson(new ActiveChannelChangedMessage(solaria.getCommands().getActiveChannel())));
+		int mask = 0;
+		for (String name : msg.getTopics()) {
+			Topic topic = Topic.fromName(name);
+			if (topic == null)
+				throw new WebSocketCommandException("Unknown topic: " + name);
+			mask |= topic.getMask();
+		}
+		return mask;
+	}
 
-				if (solaria.getCommands().getIngestStateChangedTimestamp() != null) {
-					conn.send(gson.toJson(new IngestStateChangedMessage(solaria.getCommands().isIngesting(),
-							solaria.getCommands().getIngestStateChangedTimestamp())));
-				}
+	/**
+	 * Let the snapshot know about the current status of the audio processor after
+	 * it was connected.
+	 */
+	private void updateDolbySnapshot() {
+		DolbySocketCommands commands = dolby.getCommands();
+		snapshot.update(Part.Volume, gson.toJson(new VolumeChangedMessage(commands.getVolume())));
+		snapshot.update(Part.MuteStatus, gson.toJson(new MuteStatusChangedMessage(commands.isMuted())));
+		snapshot.update(Part.InputMode, gson.toJson(new InputModeChangedMessage(commands.getInputMode())));
+		snapshot.update(Part.DecodeMode, gson.toJson(new DecodeModeChangedMessage(commands.getDecodeMode())));
+	}
+
+	/**
+	 * Let the snapshot know about the current status of the projector after it was
+	 * connected.
+	 */
+	private void updateSolariaSnapshot() {
+		SolariaSocketCommands commands = solaria.getCommands();
+		if (commands.getPowerStateChangedTimestamp() != null) {
+			snapshot.update(Part.PowerState, gson.toJson(
+					new PowerChangedMessage(commands.getPowerState(), commands.getPowerStateChangedTimestamp())));
+		}
+
+		if (commands.getLampStateChangedTimestamp() != null) {
+			snapshot.update(Part.LampState, gson.toJson(new LampChangedMessage(commands.getLampState(),
+					commands.getLampStateChangedTimestamp(), commands.getCooldownTime())));
+		}
+
+		snapshot.update(Part.DouserState, gson.toJson(new DouserChangedMessage(commands.isDouserOpen())));
+		snapshot.update(Part.ActiveChannel, gson.toJson(new ActiveChannelChangedMessage(commands.getActiveChannel())));
+
+		if (commands.getIngestStateChangedTimestamp() != null) {
+			snapshot.update(Part.IngestState, gson.toJson(
+					new IngestStateChangedMessage(commands.isIngesting(), commands.getIngestStateChangedTimestamp())));
+		}
+	}
+
+	/**
+	 * @return The state message with the current status of all devices the client
+	 *         is subscribed to.
+	 */
+	private OutgoingMessage getState(WebSocket conn) {
+		// The remaining cooldown time of the lamp changes every second.
+		SolariaSocketCommands commands = solaria.getCommands();
+		if (solaria.isConnected() && commands.getLampState() == LampState.Cooling
+				&& commands.getCooldownTime() != null) {
+			snapshot.update(Part.LampState, gson.toJson(new LampChangedMessage(commands.getLampState(),
+					commands.getLampStateChangedTimestamp(), commands.getCooldownTime())));
+		}
+		ClientSession session = conn.getAttachment();
+		return snapshot.getMessage(session.getTopics());
+	}
+
+	/**
+	 * Send the state to a client. No notification is numbered meanwhile, so the
+	 * client gets all notifications after the state.
+	 */
+	private void sendState(WebSocket conn) {
+		synchronized (replayRing) {
+			reply(conn, getState(conn));
+		}
+	}
+
+	/**
+	 * Tell all connected clients about the new state. It's remembered for new
+	 * clients once it's broadcast.
+	 */
+	private void publish(Part part, BaseMessage msg) {
+		String json = gson.toJson(msg);
+		if (URGENT_PARTS.contains(part))
+			coalescer.send(part, new OutgoingMessage(json));
+		else
+			coalescer.offer(part, new OutgoingMessage(json));
+	}
+
+	/**
+	 * Remember the new state for new clients and send a message about a part of
+	 * the state to all subscribed clients which keep up.
+	 */
+	private void sendToClients(Part part, OutgoingMessage message) {
+		// Don't send anything while a reconnecting client catches up, so it gets
+		// the notifications in order.
+		synchronized (replayRing) {
+			OutgoingMessage numbered = replayRing.add(part, message);
+			snapshot.update(part, message.getJson(), replayRing.getLastSequence());
+			for (WebSocket conn : subscribers.get(part.getTopic())) {
+				ClientSession session = conn.getAttachment();
+				if (session != null && session.send(conn, part, numbered))
+					checkSlowClients();
 			}
-		} catch (WebsocketNotConnectedException e) {
-			// Websocket disconnected while we're in the middle of sending the current
-			// state.
-			// Just drop the connection.
 		}
+		updateQueueMetrics();
+	}
+
+	/**
+	 * Send a reconnecting client the notifications it missed.
+	 *
+	 * @param sequence
+	 *            Sequence number of the latest notification the client received.
+	 * @return False if the notifications aren't available anymore and the client
+	 *         needs the whole state.
+	 */
+	private boolean resume(WebSocket conn, long sequence) {
+		ClientSession session = conn.getAttachment();
+		int topics = session.getTopics();
+		boolean resumed = replayRing.replay(sequence, (part, message) -> {
+			if ((part.getTopic().getMask() & topics) != 0 && session.send(conn, part, message))
+				checkSlowClients();
+		});
+
+		if (resumed)
+			Metrics.increment("websocket.resumed_sessions");
+		else
+			Metrics.increment("websocket.resume_fallbacks");
+		return resumed;
+	}
+
+	/**
+	 * @return The sequence number in the resume_from query parameter of the
+	 *         handshake. -1 if there is none.
+	 */
+	private static long getResumeSequence(ClientHandshake handshake) {
+		String resource = handshake.getResourceDescriptor();
+		int query = resource.indexOf('?');
+		if (query == -1)
+			return -1;
+
+		for (String parameter : resource.substring(query + 1).split("&")) {
+			if (!parameter.startsWith("resume_from="))
+				continue;
+			try {
+				return Long.parseLong(parameter.substring("resume_from=".length()));
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Send an answer to a client which passed the token check. It's sent even if
+	 * the client doesn't keep up. The client is disconnected if it stays behind.
+	 */
+	private void reply(WebSocket conn, String json) {
+		reply(conn, new OutgoingMessage(json));
+	}
+
+	private void reply(WebSocket conn, OutgoingMessage message) {
+		ClientSession session = conn.getAttachment();
+		if (session.reply(conn, message))
+			checkSlowClients();
+	}
+
+	/**
+	 * Keep checking if slow clients caught up until all of them did or were
+	 * disconnected.
+	 */
+	private void checkSlowClients() {
+		if (!checkingSlowClients.compareAndSet(false, true))
+			return;
+
+		try {
+			TaskExecutor.execute(() -> {
+				boolean congested = true;
+				while (congested) {
+					try {
+						Thread.sleep(SLOW_CLIENT_CHECK_INTERVAL);
+					} catch (InterruptedException e) {
+						break;
+					}
+
+					congested = false;
+					for (WebSocket conn : getConnections()) {
+						ClientSession session = conn.getAttachment();
+						if (session != null && drain(conn, session))
+							congested = true;
+					}
+					updateQueueMetrics();
+				}
+				checkingSlowClients.set(false);
+
+				// Someone might have fallen behind right before we stopped.
+				for (WebSocket conn : getConnections()) {
+					ClientSession session = conn.getAttachment();
+					if (session != null && session.isCongested()) {
+						checkSlowClients();
+						break;
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// We're shutting down.
+			checkingSlowClients.set(false);
+		}
+	}
+
+	/**
+	 * Send a client which caught up what was held back. A client which missed
+	 * notifications is sent the whole state instead.
+	 *
+	 * @return True if the client is still too slow.
+	 */
+	private boolean drain(WebSocket conn, ClientSession session) {
+		// Don't let new notifications overtake the held back ones.
+		synchronized (replayRing) {
+			return session.drain(conn, () -> getState(conn));
+		}
+	}
+
+	/**
+	 * Report how much data waits to be sent to the slowest client.
+	 */
+	private void updateQueueMetrics() {
+		long maxBytes = 0;
+		int maxMessages = 0;
+		int congested = 0;
+		for (WebSocket conn : getConnections()) {
+			maxBytes = Math.max(maxBytes, ClientSession.getQueuedBytes(conn));
+			maxMessages = Math.max(maxMessages, ClientSession.getQueuedMessages(conn));
+			ClientSession session = conn.getAttachment();
+			if (session != null && session.isCongested())
+				congested++;
+		}
+		Metrics.setGauge("websocket.max_queued_bytes", maxBytes);
+		Metrics.setGauge("websocket.max_queued_messages", maxMessages);
+		Metrics.setGauge("websocket.slow_clients", congested);
 	}
 
 	@Override
 	public void onClose(WebSocket conn, int code, String reason, boolean remote) {
 		System.out.println("WebSocket: " + prettySocket(conn) + " disconnected!");
+		for (Set<WebSocket> connections : subscribers.values())
+			connections.remove(conn);
+		updateClientCount();
+	}
+
+	/**
+	 * Let the devices adapt their polling interval to the number of connected
+	 * clients.
+	 */
+	private void updateClientCount() {
+		int count = getConnections().size();
+		Metrics.setGauge("websocket.clients", count);
+		dolby.getCommands().setClientCount(count);
+		jnior.getCommands().setClientCount(count);
+		christie.getCommands().setClientCount(count);
+		solaria.getCommands().setClientCount(count);
 	}
 
 	@Override
@@ -334,42 +707,94 @@ public class CinemaWebSocketServer extends WebSocketServer implements IDolbyStat
 	public void onMessage(WebSocket conn, String message) {
 		System.out.println("WebSocket: " + prettySocket(conn) + ": " + message);
 
+		// Don't listen to clients which didn't pass the token check.
+		if (conn.getAttachment() == null) {
+			conn.send(gson.toJson(new ErrorMessage("Not authenticated.")));
+			return;
+		}
+
 		try {
-			// Try to parse this message as JSON and try to extract the message
-			// type.
-			BaseMessage baseMsg = gson.fromJson(message, BaseMessage.class);
-
-			// Make sure the required fields are set in the JSON object.
-			if (baseMsg.getMessageType() == null || baseMsg.getAction() == null) {
-				System.err.println(
-						"Websocket: Invalid JSON message from " + conn + " (missing required fields): " + message);
-				conn.send(gson.toJson(new ErrorMessage(
-						"Malformed message. Messages MUST include a \"msg_type\" and an \"action\".")));
-				return;
-			}
+			// Find out what the client wants without parsing the whole message.
+			handleRequest(conn, router.parse(message), message);
+		} catch (JsonParseException e) {
+			System.err.println("Websocket: Error parsing message from " + prettySocket(conn) + ": " + e.getMessage());
+			reply(conn, gson.toJson(new ErrorMessage(e.getMessage())));
+		}
+	}
 
-			// Run through all handlers and see if one of them knows what to do
-			// with that message.
-			try {
-				for (IWebSocketMessageHandler handler : messageHandlers) {
-					if (handler.onMessage(baseMsg, message))
-						return;
-				}
+	@Override
+	public void onMessage(WebSocket conn, ByteBuffer message) {
+		// Don't listen to clients which didn't pass the token check.
+		if (conn.getAttachment() == null) {
+			conn.send(gson.toJson(new ErrorMessage("Not authenticated.")));
+			return;
+		}
 
-			} catch (WebSocketCommandException e) {
-				// Tell the client why the command failed.
-				conn.send(gson.toJson(new ErrorMessage(e.getMessage())));
-				return;
-			}
+		try {
+			JsonElement decoded = BinaryCodec.decode(message);
+			System.out.println("WebSocket: " + prettySocket(conn) + ": " + decoded);
+			if (!decoded.isJsonObject())
+				throw new JsonSyntaxException("Expected an object.");
+
+			handleRequest(conn, router.parse(decoded.getAsJsonObject()), decoded.toString());
+		} catch (JsonParseException e) {
+			System.err.println("Websocket: Error parsing binary message from " + prettySocket(conn) + ": "
+					+ e.getMessage());
+			reply(conn, gson.toJson(new ErrorMessage(e.getMessage())));
+		}
+	}
+
+	private void handleRequest(WebSocket conn, MessageRouter.Request request, String message)
+			throws JsonParseException {
+		// Make sure the required fields are set in the JSON object.
+		if (!request.hasHeader()) {
+			System.err.println(
+					"Websocket: Invalid JSON message from " + conn + " (missing required fields): " + message);
+			reply(conn, gson.toJson(new ErrorMessage(
+					"Malformed message. Messages MUST include a \"msg_type\" and an \"action\".")));
+			return;
+		}
 
-			// No message handler was able to handle that message. Tell the
-			// client!
+		// No message handler is able to handle that message. Tell the
+		// client!
+		if (!request.isRouted()) {
 			System.err.println("Websocket: Unhandled command from " + prettySocket(conn) + ": " + message);
-			conn.send(gson.toJson(
-					new ErrorMessage("Unhandled command: " + baseMsg.getMessageType() + " - " + baseMsg.getAction())));
-		} catch (JsonSyntaxException e) {
-			System.err.println("Websocket: Error parsing message from " + prettySocket(conn) + ": " + e.getMessage());
-			conn.send(gson.toJson(new ErrorMessage(e.getMessage())));
+			reply(conn, gson.toJson(new ErrorMessage(
+					"Unhandled command: " + request.getMessageType() + " - " + request.getAction())));
+			return;
+		}
+
+		// Tell the client when the device carried out the request if it wants to
+		// know.
+		CommandAcknowledgement ack = null;
+		if (request.getRequestId() != null)
+			ack = new CommandAcknowledgement(request.getRequestId(), msg -> sendAck(conn, msg));
+
+		try {
+			request.dispatch(conn, ack);
+			// Handled right here without asking a device.
+			if (ack != null && !ack.isQueued())
+				ack.finish("done", null);
+		} catch (WebSocketCommandException e) {
+			// Tell the client why the command failed.
+			reply(conn, gson.toJson(new ErrorMessage(e.getMessage())));
+			if (ack != null)
+				ack.finish("rejected", e.getMessage());
+		} catch (JsonParseException e) {
+			if (ack != null)
+				ack.finish("rejected", e.getMessage());
+			throw e;
+		}
+	}
+
+	/**
+	 * Called on the device thread when a command finished.
+	 */
+	private void sendAck(WebSocket conn, AckMessage msg) {
+		try {
+			reply(conn, gson.toJson(msg));
+		} catch (WebsocketNotConnectedException e) {
+			// The client is gone already.
 		}
 	}
 
@@ -389,104 +814,98 @@ public class CinemaWebSocketServer extends WebSocketServer implements IDolbyStat
 
 	@Override
 	public void onDolbyConnected() {
-		DolbyConnectionMessage msg = new DolbyConnectionMessage(true);
-		broadcast(gson.toJson(msg));
+		updateDolbySnapshot();
+		publish(Part.DolbyConnection, new DolbyConnectionMessage(true));
 	}
 
 	@Override
 	public void onDolbyDisconnected() {
-		DolbyConnectionMessage msg = new DolbyConnectionMessage(false);
-		broadcast(gson.toJson(msg));
+		snapshot.remove(Part.Volume);
+		snapshot.remove(Part.MuteStatus);
+		snapshot.remove(Part.InputMode);
+		snapshot.remove(Part.DecodeMode);
+		publish(Part.DolbyConnection, new DolbyConnectionMessage(false));
 	}
 
 	@Override
 	public void onVolumeChanged(int volume) {
-		VolumeChangedMessage msg = new VolumeChangedMessage(volume);
-		broadcast(gson.toJson(msg));
+		publish(Part.Volume, new VolumeChangedMessage(volume));
 	}
 
 	@Override
 	public void onMuteStatusChanged(boolean muted) {
-		MuteStatusChangedMessage msg = new MuteStatusChangedMessage(muted);
-		broadcast(gson.toJson(msg));
+		publish(Part.MuteStatus, new MuteStatusChangedMessage(muted));
 	}
 
 	@Override
 	public void onJniorConnected() {
-		LightsConnectionMessage msg = new LightsConnectionMessage(true);
-		broadcast(gson.toJson(msg));
+		publish(Part.LightsConnection, new LightsConnectionMessage(true));
 	}
 
 	@Override
 	public void onJniorDisconnected() {
-		LightsConnectionMessage msg = new LightsConnectionMessage(false);
-		broadcast(gson.toJson(msg));
+		publish(Part.LightsConnection, new LightsConnectionMessage(false));
 	}
 
 	@Override
 	public void onInputModeChanged(InputMode mode) {
-		InputModeChangedMessage msg = new InputModeChangedMessage(mode);
-		broadcast(gson.toJson(msg));
+		publish(Part.InputMode, new InputModeChangedMessage(mode));
 	}
 
 	@Override
 	public void onDecodeModeChanged(DecodeMode mode) {
-		DecodeModeChangedMessage msg = new DecodeModeChangedMessage(mode);
-		broadcast(gson.toJson(msg));
+		publish(Part.DecodeMode, new DecodeModeChangedMessage(mode));
 	}
 
 	@Override
 	public void onChristieConnected() {
-		IMBConnectionMessage msg = new IMBConnectionMessage(true);
-		broadcast(gson.toJson(msg));
+		publish(Part.IMBConnection, new IMBConnectionMessage(true));
 	}
 
 	@Override
 	public void onChristieDisconnected() {
-		IMBConnectionMessage msg = new IMBConnectionMessage(false);
-		broadcast(gson.toJson(msg));
+		publish(Part.IMBConnection, new IMBConnectionMessage(false));
 	}
 
 	@Override
 	public void onSolariaConnected() {
-		PIBConnectionMessage msg = new PIBConnectionMessage(true);
-		broadcast(gson.toJson(msg));
+		updateSolariaSnapshot();
+		publish(Part.PIBConnection, new PIBConnectionMessage(true));
 	}
 
 	@Override
 	public void onSolariaDisconnected() {
-		PIBConnectionMessage msg = new PIBConnectionMessage(false);
-		broadcast(gson.toJson(msg));
+		snapshot.remove(Part.PowerState);
+		snapshot.remove(Part.LampState);
+		snapshot.remove(Part.DouserState);
+		snapshot.remove(Part.ActiveChannel);
+		snapshot.remove(Part.IngestState);
+		publish(Part.PIBConnection, new PIBConnectionMessage(false));
 	}
 
 	@Override
 	public void onPowerStateChanged(PowerState state, Instant timestamp) {
-		PowerChangedMessage msg = new PowerChangedMessage(state, timestamp);
-		broadcast(gson.toJson(msg));
+		publish(Part.PowerState, new PowerChangedMessage(state, timestamp));
 	}
 
 	@Override
 	public void onLampStateChanged(LampState state, LampState oldState, Instant timestamp, Long cooldown) {
-		LampChangedMessage msg = new LampChangedMessage(state, timestamp, cooldown);
-		broadcast(gson.toJson(msg));
+		publish(Part.LampState, new LampChangedMessage(state, timestamp, cooldown));
 	}
 
 	@Override
 	public void onDouserStateChanged(boolean isopen) {
-		DouserChangedMessage msg = new DouserChangedMessage(isopen);
-		broadcast(gson.toJson(msg));
+		publish(Part.DouserState, new DouserChangedMessage(isopen));
 	}
 
 	@Override
 	public void onActiveChannelChanged(ChannelType channel) {
-		ActiveChannelChangedMessage msg = new ActiveChannelChangedMessage(channel);
-		broadcast(gson.toJson(msg));
+		publish(Part.ActiveChannel, new ActiveChannelChangedMessage(channel));
 	}
 
 	@Override
 	public void onIngestStatusChanged(boolean ingested, Instant timestamp) {
-		IngestStateChangedMessage msg = new IngestStateChangedMessage(ingested, timestamp);
-		broadcast(gson.toJson(msg));
+		publish(Part.IngestState, new IngestStateChangedMessage(ingested, timestamp));
 	}
 
 	/*
@@ -0,0 +1,249 @@
+package de.schunterkino.kinoapi.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.function.Supplier;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+
+import de.schunterkino.kinoapi.App;
+import de.schunterkino.kinoapi.metrics.Metrics;
+import de.schunterkino.kinoapi.websocket.StateSnapshot.Part;
+
+/**
+ * State kept for every websocket connection which passed the token check. It's
+ * attached to the connection, so connections without a session aren't
+ * authenticated.
+ *
+ * Messages for the client are only handed to the connection while its send
+ * queue is below the configured limits. If the client doesn't read fast
+ * enough, only the latest message of every part of the state is held back
+ * until there is room again and other messages are dropped. If a message was
+ * dropped, the client gets the whole state with the sequence number to resume
+ * from instead of the held back messages once it caught up. Answers to the
+ * requests of the client are always sent, but count against the limits. A
+ * client which stays over the limits for too long is disconnected.
+ *
+ * Clients receive the notifications of all topics until they subscribe to
+ * some of them.
+ */
+public class ClientSession {
+
+	private static final String LOG_TAG = "WebSocket";
+
+	// Limits of the data waiting to be sent to the client.
+	private int maxQueuedBytes;
+	private int maxQueuedMessages;
+
+	// Milliseconds a client may stay over the limits.
+	private int gracePeriod;
+
+	// Latest state messages which didn't fit into the send queue in the order
+	// they were produced.
+	private LinkedHashMap<Part, OutgoingMessage> heldBack;
+
+	// True if messages were dropped since the client caught up the last time.
+	private boolean missedMessages;
+
+	// When the send queue went over the limits in System.currentTimeMillis()
+	// time. -1 while there is room.
+	private long congestedSince;
+
+	// True if the client negotiated the binary encoding.
+	private boolean binary;
+
+	// Bitmask of the topics the client is interested in.
+	private int topics;
+	private boolean subscribed;
+
+	/**
+	 * @param binary
+	 *            True to send the messages encoded with the {@link BinaryCodec}.
+	 */
+	public ClientSession(boolean binary) {
+		this.binary = binary;
+		this.maxQueuedBytes = App.getConfigurationInteger("websocket_client_queue_bytes");
+		this.maxQueuedMessages = App.getConfigurationInteger("websocket_client_queue_messages");
+		this.gracePeriod = App.getConfigurationInteger("websocket_slow_client_grace");
+		this.heldBack = new LinkedHashMap<>();
+		this.missedMessages = false;
+		this.congestedSince = -1;
+		this.topics = Topic.ALL;
+		this.subscribed = false;
+	}
+
+	/**
+	 * Receive notifications of the topics. The first subscription replaces the
+	 * default of receiving everything.
+	 *
+	 * @param mask
+	 *            Bitmask of the topics.
+	 * @return Bitmask of all topics the client is subscribed to now.
+	 */
+	public synchronized int subscribe(int mask) {
+		if (!subscribed)
+			topics = 0;
+		subscribed = true;
+		topics |= mask;
+		return topics;
+	}
+
+	/**
+	 * Stop receiving notifications of the topics.
+	 *
+	 * @param mask
+	 *            Bitmask of the topics.
+	 * @return Bitmask of all topics the client is subscribed to now.
+	 */
+	public synchronized int unsubscribe(int mask) {
+		subscribed = true;
+		topics &= ~mask;
+		return topics;
+	}
+
+	/**
+	 * @return Bitmask of the topics the client is subscribed to.
+	 */
+	public synchronized int getTopics() {
+		return topics;
+	}
+
+	/**
+	 * Send a message to the client if its send queue has room.
+	 *
+	 * @param conn
+	 *            The connection of this session.
+	 * @param part
+	 *            The part of the state the message describes. Null if the message
+	 *            doesn't describe the state and can be dropped.
+	 * @param message
+	 *            The message to send.
+	 * @return True if the message had to be held back or dropped.
+	 */
+	public synchronized boolean send(WebSocket conn, Part part, OutgoingMessage message) {
+		// Keep the order of the messages while anything is held back.
+		if (congestedSince == -1 && hasRoom(conn)) {
+			sendNow(conn, message);
+			return false;
+		}
+
+		if (congestedSince == -1)
+			congestedSince = System.currentTimeMillis();
+
+		// A newer message about the same part goes to the end of the line.
+		if (part == null || heldBack.remove(part) != null) {
+			Metrics.increment("websocket.dropped_messages");
+			missedMessages = true;
+		}
+		if (part != null)
+			heldBack.put(part, message);
+		return true;
+	}
+
+	/**
+	 * Send an answer to a request of the client. It's never dropped or held
+	 * back, but it may put the send queue over the limits.
+	 *
+	 * @param conn
+	 *            The connection of this session.
+	 * @param message
+	 *            The message to send.
+	 * @return True if the send queue is over the limits.
+	 */
+	public synchronized boolean reply(WebSocket conn, OutgoingMessage message) {
+		sendNow(conn, message);
+		if (congestedSince == -1 && !hasRoom(conn))
+			congestedSince = System.currentTimeMillis();
+		return congestedSince != -1;
+	}
+
+	/**
+	 * Send the held back messages if the client caught up. Disconnect it if it
+	 * was over the limits for too long.
+	 *
+	 * @param conn
+	 *            The connection of this session.
+	 * @param state
+	 *            Creates the state message which is sent instead if messages
+	 *            were dropped.
+	 * @return True if messages are still held back.
+	 */
+	public synchronized boolean drain(WebSocket conn, Supplier<OutgoingMessage> state) {
+		if (congestedSince == -1)
+			return false;
+
+		if (hasRoom(conn)) {
+			if (missedMessages) {
+				Metrics.increment("websocket.state_resyncs");
+				sendNow(conn, state.get());
+			} else {
+				for (OutgoingMessage message : heldBack.values())
+					sendNow(conn, message);
+			}
+			heldBack.clear();
+			missedMessages = false;
+			congestedSince = -1;
+			return false;
+		}
+
+		if (System.currentTimeMillis() - congestedSince > gracePeriod) {
+			System.err.printf("%s: %s doesn't read its messages. Disconnecting.%n", LOG_TAG,
+					conn.getRemoteSocketAddress());
+			Metrics.increment("websocket.slow_clients_closed");
+			heldBack.clear();
+			congestedSince = -1;
+			conn.close(CinemaWebSocketServer.SLOW_CLIENT_ERROR_CODE, "Too slow.");
+			return false;
+		}
+
+		return true;
+	}
+
+	private void sendNow(WebSocket conn, OutgoingMessage message) {
+		if (binary)
+			conn.send(message.getBinary());
+		else
+			conn.send(message.getJson());
+	}
+
+	/**
+	 * @return True if the client negotiated the binary encoding.
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * @return True if messages are held back because the client is too slow.
+	 */
+	public synchronized boolean isCongested() {
+		return congestedSince != -1;
+	}
+
+	private boolean hasRoom(WebSocket conn) {
+		return getQueuedMessages(conn) < maxQueuedMessages && getQueuedBytes(conn) < maxQueuedBytes;
+	}
+
+	/**
+	 * @return Number of frames waiting to be sent on the connection.
+	 */
+	public static int getQueuedMessages(WebSocket conn) {
+		if (!(conn instanceof WebSocketImpl))
+			return 0;
+		return ((WebSocketImpl) conn).outQueue.size();
+	}
+
+	/**
+	 * @return Number of bytes waiting to be sent on the connection.
+	 */
+	public static long getQueuedBytes(WebSocket conn) {
+		if (!(conn instanceof WebSocketImpl))
+			return 0;
+
+		long bytes = 0;
+		for (ByteBuffer buffer : ((WebSocketImpl) conn).outQueue)
+			bytes += buffer.remaining();
+		return bytes;
+	}
+}
@@ -0,0 +1,80 @@
+package de.schunterkino.kinoapi.websocket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import de.schunterkino.kinoapi.metrics.Histogram;
+import de.schunterkino.kinoapi.metrics.Metrics;
+import de.schunterkino.kinoapi.sockets.CommandStatus;
+import de.schunterkino.kinoapi.sockets.ICommandCallback;
+import de.schunterkino.kinoapi.websocket.messages.AckMessage;
+
+/**
+ * Tells a client what became of a request which carried a request_id and how
+ * long it took from receiving the request until then.
+ */
+public class CommandAcknowledgement implements ICommandCallback {
+
+	// Time until the device confirmed a request in microseconds.
+	private static final Histogram confirmedLatency = Metrics.getHistogram("websocket.command_latency_us");
+
+	private String requestId;
+	private Consumer<AckMessage> sender;
+
+	// When the request was received in System.nanoTime().
+	private long receivedTime;
+
+	private volatile boolean queued;
+	private AtomicBoolean finished;
+
+	/**
+	 * @param requestId
+	 *            The id the client gave the request.
+	 * @param sender
+	 *            Sends the acknowledgement to the client.
+	 */
+	public CommandAcknowledgement(String requestId, Consumer<AckMessage> sender) {
+		this.requestId = requestId;
+		this.sender = sender;
+		this.receivedTime = System.nanoTime();
+		this.queued = false;
+		this.finished = new AtomicBoolean(false);
+	}
+
+	@Override
+	public void onCommandQueued() {
+		queued = true;
+	}
+
+	@Override
+	public void onCommandFinished(CommandStatus status, String error) {
+		finish(status.getName(), error);
+	}
+
+	/**
+	 * @return True if a command for a device carries out the request.
+	 */
+	public boolean isQueued() {
+		return queued;
+	}
+
+	/**
+	 * Send the acknowledgement unless it was sent already.
+	 *
+	 * @param status
+	 *            What became of the request.
+	 * @param error
+	 *            Why the request failed. May be null.
+	 */
+	public void finish(String status, String error) {
+		if (!finished.compareAndSet(false, true))
+			return;
+
+		long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - receivedTime);
+		if (CommandStatus.Confirmed.getName().equals(status))
+			confirmedLatency.record(latency);
+		Metrics.increment("websocket.acks_" + status);
+		sender.accept(new AckMessage(requestId, status, error, latency));
+	}
+}
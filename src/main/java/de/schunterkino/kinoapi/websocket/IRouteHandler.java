@@ -0,0 +1,24 @@
+package de.schunterkino.kinoapi.websocket;
+
+import org.java_websocket.WebSocket;
+
+import de.schunterkino.kinoapi.websocket.messages.BaseMessage;
+
+/**
+ * Handles one message type and action registered in the {@link MessageRouter}.
+ */
+@FunctionalInterface
+public interface IRouteHandler<T extends BaseMessage> {
+
+	/**
+	 * Called when a WebSocket client sent a message for this route.
+	 *
+	 * @param conn
+	 *            The client which sent the message.
+	 * @param msg
+	 *            The parsed message.
+	 * @throws WebSocketCommandException
+	 *             Throw this exception if there is a problem with the command.
+	 */
+	void onMessage(WebSocket conn, T msg) throws WebSocketCommandException;
+}
@@ -0,0 +1,60 @@
+package de.schunterkino.kinoapi.websocket;
+
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
+
+import de.schunterkino.kinoapi.metrics.Histogram;
+import de.schunterkino.kinoapi.metrics.Metrics;
+
+/**
+ * The permessage-deflate extension which records how well the messages sent to
+ * the clients compress and how long it takes. Every connection gets its own
+ * copy, so a message is compressed once for every client.
+ */
+public class MeasuredDeflateExtension extends PerMessageDeflateExtension {
+
+	private static final Histogram deflateTime = Metrics.getHistogram("websocket.deflate_us");
+
+	/**
+	 * @param compressionLevel
+	 *            Deflate level between 1 (fastest) and 9 (smallest).
+	 * @param threshold
+	 *            Messages smaller than this many bytes are sent uncompressed.
+	 */
+	public MeasuredDeflateExtension(int compressionLevel, int threshold) {
+		super(compressionLevel);
+		setThreshold(threshold);
+	}
+
+	@Override
+	public void encodeFrame(Framedata frame) {
+		if (!(frame instanceof DataFrame)) {
+			super.encodeFrame(frame);
+			return;
+		}
+
+		// The extension looks at the whole array backing the payload.
+		int size = frame.getPayloadData().array().length;
+		if (size < getThreshold()) {
+			super.encodeFrame(frame);
+			Metrics.increment("websocket.deflate_skipped_messages");
+			return;
+		}
+
+		long start = System.nanoTime();
+		super.encodeFrame(frame);
+		deflateTime.record((System.nanoTime() - start) / 1000);
+		Metrics.add("websocket.deflate_bytes_in", size);
+		Metrics.add("websocket.deflate_bytes_out", frame.getPayloadData().remaining());
+	}
+
+	@Override
+	public IExtension copyInstance() {
+		MeasuredDeflateExtension copy = new MeasuredDeflateExtension(getCompressionLevel(), getThreshold());
+		copy.setClientNoContextTakeover(isClientNoContextTakeover());
+		copy.setServerNoContextTakeover(isServerNoContextTakeover());
+		return copy;
+	}
+}
@@ -0,0 +1,251 @@
+package de.schunterkino.kinoapi.websocket;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.java_websocket.WebSocket;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import de.schunterkino.kinoapi.sockets.ICommandCallback;
+import de.schunterkino.kinoapi.websocket.messages.BaseMessage;
+
+/**
+ * Finds the handler of a client message by its message type and action. The
+ * message is read with a streaming parser once. As soon as the type and the
+ * action are known, messages nobody handles are rejected without looking at
+ * the rest, and the remaining fields are only kept if the handler wants them.
+ */
+public class MessageRouter {
+
+	// msg_type -> action -> route
+	private HashMap<String, HashMap<String, Route<?>>> routes;
+	private Gson gson;
+
+	public MessageRouter() {
+		this.routes = new HashMap<>();
+		this.gson = new Gson();
+	}
+
+	/**
+	 * Handle a message with further fields.
+	 *
+	 * @param messageClass
+	 *            The class the whole message is parsed into.
+	 */
+	public <T extends BaseMessage> void add(String msgType, String action, Class<T> messageClass,
+			IRouteHandler<T> handler) {
+		HashMap<String, Route<?>> actions = routes.computeIfAbsent(msgType, type -> new HashMap<>());
+		if (actions.put(action, new Route<>(messageClass, handler)) != null)
+			throw new IllegalArgumentException("Route " + msgType + " - " + action + " added twice.");
+	}
+
+	/**
+	 * Handle a message which only consists of the message type and action.
+	 */
+	public void add(String msgType, String action, IRouteHandler<BaseMessage> handler) {
+		add(msgType, action, null, handler);
+	}
+
+	/**
+	 * Read the message type and action of a message and find its route.
+	 *
+	 * @param message
+	 *            The JSON message sent by the client.
+	 * @return The message ready to be dispatched.
+	 * @throws JsonSyntaxException
+	 *             Thrown if the message isn't a JSON object.
+	 */
+	public Request parse(String message) throws JsonSyntaxException {
+		Request request = new Request();
+		try {
+			JsonReader reader = new JsonReader(new StringReader(message));
+			// Accept the same messages as Gson.fromJson.
+			reader.setStrictness(Strictness.LENIENT);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("msg_type".equals(name)) {
+					request.msgType = nextString(reader);
+				} else if ("action".equals(name)) {
+					request.action = nextString(reader);
+				} else if ("request_id".equals(name)) {
+					request.requestId = nextString(reader);
+				} else if (request.route != null && request.route.messageClass == null) {
+					// Nobody is interested in the other fields.
+					reader.skipValue();
+				} else {
+					if (request.payload == null)
+						request.payload = new JsonObject();
+					request.payload.add(name, JsonParser.parseReader(reader));
+				}
+
+				if (request.route == null && request.msgType != null && request.action != null) {
+					request.route = getRoute(request.msgType, request.action);
+					// Don't bother reading the rest.
+					if (request.route == null)
+						return request;
+				}
+			}
+			reader.endObject();
+
+			if (reader.peek() != JsonToken.END_DOCUMENT)
+				throw new JsonSyntaxException("Unexpected data after the JSON object.");
+		} catch (IOException | IllegalStateException e) {
+			throw new JsonSyntaxException(e.getMessage(), e);
+		}
+		return request;
+	}
+
+	/**
+	 * Find the route of a message which was decoded already.
+	 *
+	 * @param message
+	 *            The message sent by the client.
+	 * @return The message ready to be dispatched.
+	 * @throws JsonSyntaxException
+	 *             Thrown if the message type or action isn't a string.
+	 */
+	public Request parse(JsonObject message) throws JsonSyntaxException {
+		Request request = new Request();
+		for (Map.Entry<String, JsonElement> member : message.entrySet()) {
+			String name = member.getKey();
+			if ("msg_type".equals(name)) {
+				request.msgType = getString(member.getValue());
+			} else if ("action".equals(name)) {
+				request.action = getString(member.getValue());
+			} else if ("request_id".equals(name)) {
+				request.requestId = getString(member.getValue());
+			} else {
+				if (request.payload == null)
+					request.payload = new JsonObject();
+				request.payload.add(name, member.getValue());
+			}
+		}
+
+		if (request.hasHeader())
+			request.route = getRoute(request.msgType, request.action);
+		return request;
+	}
+
+	private static String getString(JsonElement element) {
+		if (element.isJsonNull())
+			return null;
+		if (!element.isJsonPrimitive())
+			throw new JsonSyntaxException("Expected a string but was " + element);
+		return element.getAsString();
+	}
+
+	private static String nextString(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		return reader.nextString();
+	}
+
+	private Route<?> getRoute(String msgType, String action) {
+		HashMap<String, Route<?>> actions = routes.get(msgType);
+		if (actions == null)
+			return null;
+		return actions.get(action);
+	}
+
+	/**
+	 * A message of a client with its route.
+	 */
+	public class Request {
+		private String msgType;
+		private String action;
+		private Route<?> route;
+
+		// Optional id the client wants to see in the acknowledgement.
+		private String requestId;
+
+		// Fields besides the message type and action.
+		private JsonObject payload;
+
+		/**
+		 * @return True if the message contains a message type and an action.
+		 */
+		public boolean hasHeader() {
+			return msgType != null && action != null;
+		}
+
+		/**
+		 * @return True if a handler is registered for the message.
+		 */
+		public boolean isRouted() {
+			return route != null;
+		}
+
+		public String getMessageType() {
+			return msgType;
+		}
+
+		public String getAction() {
+			return action;
+		}
+
+		/**
+		 * @return The id of the request or null if the client didn't ask for an
+		 *         acknowledgement.
+		 */
+		public String getRequestId() {
+			return requestId;
+		}
+
+		/**
+		 * Parse the message into the class of its route and pass it to the handler.
+		 *
+		 * @param conn
+		 *            The client which sent the message.
+		 * @param callback
+		 *            Handed to the command which carries out the request. May be
+		 *            null.
+		 * @throws WebSocketCommandException
+		 *             Thrown by the handler.
+		 * @throws JsonParseException
+		 *             Thrown if the fields don't fit the message class.
+		 */
+		public void dispatch(WebSocket conn, ICommandCallback callback)
+				throws WebSocketCommandException, JsonParseException {
+			route.dispatch(conn, this, callback);
+		}
+	}
+
+	private class Route<T extends BaseMessage> {
+		// Null if the message has no further fields.
+		private Class<T> messageClass;
+		private IRouteHandler<T> handler;
+
+		public Route(Class<T> messageClass, IRouteHandler<T> handler) {
+			this.messageClass = messageClass;
+			this.handler = handler;
+		}
+
+		@SuppressWarnings("unchecked")
+		public void dispatch(WebSocket conn, Request request, ICommandCallback callback)
+				throws WebSocketCommandException, JsonParseException {
+			T msg;
+			if (messageClass == null)
+				msg = (T) new BaseMessage(request.msgType, request.action);
+			else if (request.payload == null)
+				msg = gson.fromJson(new JsonObject(), messageClass);
+			else
+				msg = gson.fromJson(request.payload, messageClass);
+			msg.setCallback(callback);
+			handler.onMessage(conn, msg);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package de.schunterkino.kinoapi.websocket;
+
+import com.google.gson.JsonParser;
+
+/**
+ * A message for the clients in both encodings. The binary encoding is only
+ * created when the first client using it needs the message.
+ */
+public class OutgoingMessage {
+
+	private String json;
+
+	// Null until a client using the binary encoding needs it.
+	private volatile byte[] binary;
+
+	public OutgoingMessage(String json) {
+		this.json = json;
+		this.binary = null;
+	}
+
+	public OutgoingMessage(String json, byte[] binary) {
+		this.json = json;
+		this.binary = binary;
+	}
+
+	/**
+	 * @return A copy of the message with a "seq" field holding the sequence
+	 *         number.
+	 */
+	public OutgoingMessage withSequence(long sequence) {
+		// The messages are JSON objects. Add the field before the closing brace.
+		return new OutgoingMessage(json.substring(0, json.length() - 1) + ",\"seq\":" + sequence + "}");
+	}
+
+	public String getJson() {
+		return json;
+	}
+
+	/**
+	 * @return The message encoded with the {@link BinaryCodec}.
+	 */
+	public byte[] getBinary() {
+		// Encoding it twice at the same time doesn't hurt.
+		byte[] encoded = binary;
+		if (encoded == null) {
+			encoded = BinaryCodec.encode(JsonParser.parseString(json));
+			binary = encoded;
+		}
+		return encoded;
+	}
+}
@@ -0,0 +1,92 @@
+package de.schunterkino.kinoapi.websocket;
+
+import java.util.function.BiConsumer;
+
+import de.schunterkino.kinoapi.websocket.StateSnapshot.Part;
+
+/**
+ * The latest broadcast notifications numbered by a sequence number, so clients
+ * which lost their connection for a moment can catch up on the changes they
+ * missed instead of fetching the whole state again. The ring has a fixed size
+ * and overwrites the oldest notification.
+ *
+ * Sequence numbers start at the time the server started in milliseconds, so
+ * they keep increasing across restarts and a number from before a restart is
+ * never mistaken for a current one.
+ */
+public class ReplayRing {
+
+	private Part[] parts;
+	private OutgoingMessage[] messages;
+
+	// Sequence number of the latest notification.
+	private long lastSequence;
+	// Number of notifications in the ring.
+	private int count;
+
+	/**
+	 * @param capacity
+	 *            Number of notifications to keep.
+	 */
+	public ReplayRing(int capacity) {
+		this.parts = new Part[capacity];
+		this.messages = new OutgoingMessage[capacity];
+		this.lastSequence = System.currentTimeMillis();
+		this.count = 0;
+	}
+
+	/**
+	 * Number a notification and remember it.
+	 *
+	 * @param part
+	 *            The part of the state the notification describes.
+	 * @param message
+	 *            The notification.
+	 * @return The notification including its sequence number.
+	 */
+	public synchronized OutgoingMessage add(Part part, OutgoingMessage message) {
+		lastSequence++;
+		OutgoingMessage numbered = message.withSequence(lastSequence);
+		if (parts.length == 0)
+			return numbered;
+
+		int index = getIndex(lastSequence);
+		parts[index] = part;
+		messages[index] = numbered;
+		if (count < parts.length)
+			count++;
+		return numbered;
+	}
+
+	/**
+	 * @return Sequence number of the latest notification.
+	 */
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Hand out all notifications after a sequence number in order.
+	 *
+	 * @param sequence
+	 *            Sequence number of the latest notification the client received.
+	 * @param receiver
+	 *            Receives the missed notifications.
+	 * @return False if some of the notifications aren't in the ring anymore or
+	 *         the sequence number is unknown. Nothing is handed out then.
+	 */
+	public synchronized boolean replay(long sequence, BiConsumer<Part, OutgoingMessage> receiver) {
+		if (sequence > lastSequence || sequence < lastSequence - count)
+			return false;
+
+		for (long next = sequence + 1; next <= lastSequence; next++) {
+			int index = getIndex(next);
+			receiver.accept(parts[index], messages[index]);
+		}
+		return true;
+	}
+
+	private int getIndex(long sequence) {
+		return (int) (sequence % parts.length);
+	}
+}
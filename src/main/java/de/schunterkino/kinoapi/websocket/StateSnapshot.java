@@ -0,0 +1,143 @@
+package de.schunterkino.kinoapi.websocket;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The current state of the cinema as sent to new websocket clients. Every part
+ * is kept as the JSON of the notification which announced it, so a change only
+ * costs the serialization which is needed for the broadcast anyway. The whole
+ * snapshot is put together once per change and then handed out to any number
+ * of clients.
+ *
+ * The snapshot remembers the sequence number of the latest broadcast
+ * notification it contains, so a client resuming from the state message
+ * misses none of the later ones.
+ */
+public class StateSnapshot {
+
+	/**
+	 * Parts of the state in the order they're sent.
+	 */
+	public enum Part {
+		DolbyConnection(Topic.Volume), Volume(Topic.Volume), MuteStatus(Topic.Volume), InputMode(Topic.Volume),
+		DecodeMode(Topic.Volume), LightsConnection(Topic.Lights), IMBConnection(Topic.Playback),
+		PIBConnection(Topic.Projector), PowerState(Topic.Projector), LampState(Topic.Projector),
+		DouserState(Topic.Projector), ActiveChannel(Topic.Projector), IngestState(Topic.Projector);
+
+		private Topic topic;
+
+		private Part(Topic topic) {
+			this.topic = topic;
+		}
+
+		public Topic getTopic() {
+			return topic;
+		}
+	}
+
+	private EnumMap<Part, String> parts;
+
+	// Increased on every change of the state.
+	private long version;
+
+	// The state message for every combination of topics. Null if it has to be
+	// put together again.
+	private OutgoingMessage[] messages;
+	// Sequence number of the latest notification included in the snapshot.
+	private long sequence;
+
+	/**
+	 * @param sequence
+	 *            Sequence number of the latest notification broadcast so far.
+	 */
+	public StateSnapshot(long sequence) {
+		this.parts = new EnumMap<>(Part.class);
+		this.version = 0;
+		this.messages = new OutgoingMessage[Topic.ALL + 1];
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Replace a part of the state.
+	 *
+	 * @param part
+	 *            The part which changed.
+	 * @param message
+	 *            JSON of the notification describing the new state of the part.
+	 */
+	public synchronized void update(Part part, String message) {
+		if (message.equals(parts.get(part)))
+			return;
+
+		parts.put(part, message);
+		changed();
+	}
+
+	/**
+	 * Replace a part of the state with a notification which was broadcast.
+	 *
+	 * @param part
+	 *            The part which changed.
+	 * @param message
+	 *            JSON of the notification without its sequence number.
+	 * @param sequence
+	 *            Sequence number of the notification.
+	 */
+	public synchronized void update(Part part, String message, long sequence) {
+		this.sequence = sequence;
+		if (message.equals(parts.get(part))) {
+			Arrays.fill(messages, null);
+			return;
+		}
+
+		parts.put(part, message);
+		changed();
+	}
+
+	/**
+	 * Forget about a part of the state, e.g. because the device which reported it
+	 * was disconnected.
+	 */
+	public synchronized void remove(Part part) {
+		if (parts.remove(part) != null)
+			changed();
+	}
+
+	private void changed() {
+		version++;
+		Arrays.fill(messages, null);
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param topics
+	 *            Bitmask of the topics to include.
+	 * @return The state message containing all known parts of the topics and the
+	 *         sequence number of the latest notification included. Clients
+	 *         resume from there after reconnecting.
+	 */
+	public synchronized OutgoingMessage getMessage(int topics) {
+		if (messages[topics] == null) {
+			StringBuilder sb = new StringBuilder(1024);
+			sb.append("{\"msg_type\":\"state\",\"action\":\"state\",\"version\":").append(version)
+					.append(",\"seq\":").append(sequence).append(",\"messages\":[");
+			boolean first = true;
+			for (Map.Entry<Part, String> entry : parts.entrySet()) {
+				if ((entry.getKey().getTopic().getMask() & topics) == 0)
+					continue;
+				if (!first)
+					sb.append(',');
+				sb.append(entry.getValue());
+				first = false;
+			}
+			sb.append("]}");
+			messages[topics] = new OutgoingMessage(sb.toString());
+		}
+		return messages[topics];
+	}
+}
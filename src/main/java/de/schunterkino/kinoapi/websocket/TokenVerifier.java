@@ -0,0 +1,109 @@
+package de.schunterkino.kinoapi.websocket;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.schunterkino.kinoapi.App;
+import de.schunterkino.kinoapi.metrics.Metrics;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.io.Decoders;
+import io.jsonwebtoken.security.Keys;
+
+/**
+ * Checks the JSON Web Tokens of connecting clients. The parser is only built
+ * again if the signature key changes. Clients reconnect often, so tokens which
+ * passed the check are remembered until they expire and aren't verified again.
+ */
+public class TokenVerifier {
+
+	// The subject is just there because.
+	private static final String SUBJECT = "SchunterKinoRemote";
+
+	// The configured key the parser was built with.
+	private String signatureKey;
+	private JwtParser parser;
+
+	// Hash of a verified token -> when it expires in milliseconds since the
+	// epoch. Forgets the least recently used token when it's full.
+	private LinkedHashMap<String, Long> verifiedTokens;
+
+	public TokenVerifier() {
+		this.signatureKey = null;
+		this.parser = null;
+		int maxTokens = App.getConfigurationInteger("jws_token_cache_size");
+		this.verifiedTokens = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > maxTokens;
+			}
+		};
+	}
+
+	/**
+	 * Validate the signature, the subject and the expiry of a token.
+	 *
+	 * @param compactJws
+	 *            The token sent by the client.
+	 * @throws JwtException
+	 *             Thrown if the token isn't valid. An expired token causes an
+	 *             {@link io.jsonwebtoken.ExpiredJwtException}.
+	 */
+	public void verify(String compactJws) throws JwtException {
+		String hash = hash(compactJws);
+		JwtParser currentParser;
+		synchronized (this) {
+			updateParser();
+			Long expiry = verifiedTokens.get(hash);
+			if (expiry != null) {
+				if (System.currentTimeMillis() < expiry) {
+					Metrics.increment("websocket.token_cache_hits");
+					return;
+				}
+				// Let the parser tell it's expired.
+				verifiedTokens.remove(hash);
+			}
+			currentParser = parser;
+		}
+
+		Metrics.increment("websocket.token_cache_misses");
+		Claims claims = currentParser.parseSignedClaims(compactJws).getPayload();
+		Date expiration = claims.getExpiration();
+
+		synchronized (this) {
+			// Don't remember tokens checked with an old key.
+			if (currentParser == parser)
+				verifiedTokens.put(hash, expiration != null ? expiration.getTime() : Long.MAX_VALUE);
+		}
+	}
+
+	private void updateParser() {
+		String key = App.getConfigurationString("jws_signature_key");
+		if (parser != null && key.equals(signatureKey))
+			return;
+
+		parser = Jwts.parser().requireSubject(SUBJECT).verifyWith(Keys.hmacShaKeyFor(Decoders.BASE64.decode(key)))
+				.build();
+		signatureKey = key;
+		verifiedTokens.clear();
+	}
+
+	private static String hash(String compactJws) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Base64.getEncoder().encodeToString(digest.digest(compactJws.getBytes(StandardCharsets.US_ASCII)));
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM has to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package de.schunterkino.kinoapi.websocket;
+
+/**
+ * Groups of notifications a client can subscribe to. Named after the
+ * msg_type of the notifications.
+ */
+public enum Topic {
+	Volume("volume"), Lights("lights"), Playback("playback"), Projector("projector");
+
+	/**
+	 * Bitmask of all topics.
+	 */
+	public static final int ALL = (1 << values().length) - 1;
+
+	private String name;
+
+	private Topic(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The bit of this topic in a bitmask of topics.
+	 */
+	public int getMask() {
+		return 1 << ordinal();
+	}
+
+	/**
+	 * @return The topic with the name or null if there is none.
+	 */
+	public static Topic fromName(String name) {
+		for (Topic topic : values()) {
+			if (topic.name.equals(name))
+				return topic;
+		}
+		return null;
+	}
+}
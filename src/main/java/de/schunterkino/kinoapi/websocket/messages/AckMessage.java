@@ -0,0 +1,33 @@
+package de.schunterkino.kinoapi.websocket.messages;
+
+public class AckMessage extends BaseMessage {
+
+	private String request_id;
+	private String status;
+	private String error;
+	private long latency_us;
+
+	public AckMessage(String requestId, String status, String error, long latency) {
+		super("ack", "ack");
+		this.request_id = requestId;
+		this.status = status;
+		this.error = error;
+		this.latency_us = latency;
+	}
+
+	public String getRequestId() {
+		return request_id;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public long getLatency() {
+		return latency_us;
+	}
+}
@@ -1,9 +1,14 @@
 package de.schunterkino.kinoapi.websocket.messages;
 
+import de.schunterkino.kinoapi.sockets.ICommandCallback;
+
 public class BaseMessage {
 	protected String msg_type;
 	protected String action;
 
+	// Informed when the device carried out the request. Not part of the JSON.
+	private transient ICommandCallback callback;
+
 	public BaseMessage(String msg_type, String action) {
 		this.msg_type = msg_type;
 		this.action = action;
@@ -16,4 +21,16 @@ public class BaseMessage {
 	public String getAction() {
 		return action;
 	}
+
+	/**
+	 * @return Callback to pass to the command which carries out the request. Null
+	 *         if the client doesn't want to be told when it's done.
+	 */
+	public ICommandCallback getCallback() {
+		return callback;
+	}
+
+	public void setCallback(ICommandCallback callback) {
+		this.callback = callback;
+	}
 }
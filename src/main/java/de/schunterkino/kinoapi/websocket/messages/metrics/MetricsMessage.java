@@ -0,0 +1,38 @@
+package de.schunterkino.kinoapi.websocket.messages.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.schunterkino.kinoapi.metrics.Histogram;
+import de.schunterkino.kinoapi.metrics.Metrics;
+import de.schunterkino.kinoapi.websocket.messages.BaseMessage;
+
+public class MetricsMessage extends BaseMessage {
+
+	Map<String, Long> counters;
+	Map<String, Long> gauges;
+	Map<String, HistogramSummary> histograms;
+
+	public MetricsMessage() {
+		super("metrics", "metrics");
+		this.counters = Metrics.getCounters();
+		this.gauges = Metrics.getGauges();
+		this.histograms = new TreeMap<>();
+		for (Map.Entry<String, Histogram> e : Metrics.getHistograms().entrySet())
+			histograms.put(e.getKey(), new HistogramSummary(e.getValue()));
+	}
+
+	static class HistogramSummary {
+		long count;
+		long p50;
+		long p99;
+		long max;
+
+		HistogramSummary(Histogram histogram) {
+			this.count = histogram.getCount();
+			this.p50 = histogram.getPercentile(50);
+			this.p99 = histogram.getPercentile(99);
+			this.max = histogram.getMax();
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package de.schunterkino.kinoapi.websocket.messages.subscription;
+
+import java.util.List;
+
+import de.schunterkino.kinoapi.websocket.messages.BaseMessage;
+
+public class SubscriptionMessage extends BaseMessage {
+	private List<String> topics;
+
+	public SubscriptionMessage(String action, List<String> topics) {
+		super("subscription", action);
+		this.topics = topics;
+	}
+
+	public List<String> getTopics() {
+		return topics;
+	}
+}